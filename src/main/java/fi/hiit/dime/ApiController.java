@@ -27,16 +27,23 @@ package fi.hiit.dime;
 import static fi.hiit.dime.search.SearchIndex.WeightType;
 import static fi.hiit.dime.search.SearchIndex.weightType;
 
+import fi.hiit.dime.authentication.Role;
 import fi.hiit.dime.authentication.User;
+import fi.hiit.dime.data.DiMeData;
 import fi.hiit.dime.data.Profile;
 import fi.hiit.dime.database.EventDAO;
 import fi.hiit.dime.database.InformationElementDAO;
 import fi.hiit.dime.database.ProfileDAO;
 import fi.hiit.dime.search.KeywordSearchQuery;
+import fi.hiit.dime.search.Facets;
+import fi.hiit.dime.search.ReindexProgress;
+import fi.hiit.dime.search.ResultCache;
+import fi.hiit.dime.search.SearchOptions;
 import fi.hiit.dime.search.SearchIndex.SearchQueryException;
 import fi.hiit.dime.search.SearchIndex;
 import fi.hiit.dime.search.SearchQuery;
 import fi.hiit.dime.search.SearchResults;
+import fi.hiit.dime.search.SimilarSearchQuery;
 import fi.hiit.dime.search.TextSearchQuery;
 import fi.hiit.dime.search.WeightedKeyword;
 
@@ -52,7 +59,6 @@ import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.security.core.Authentication;
-import org.springframework.transaction.annotation.Transactional;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestMapping;
@@ -63,6 +69,9 @@ import org.springframework.web.bind.annotation.RestController;
 import org.springframework.web.client.RestTemplate;
 
 import java.io.IOException;
+import java.text.DateFormat;
+import java.text.ParseException;
+import java.util.Arrays;
 
 import javax.servlet.ServletRequest;
 
@@ -239,13 +248,114 @@ public class ApiController extends AuthorizedController {
     }
     
 
-    @Transactional(readOnly=true)
     @Scheduled(initialDelay=30000, fixedRate=60000)
     public void updateSearchIndex() {
         LOG.debug("Scheduled checking of Lucene index.");
         searchIndex.updateIndex();        
     }
 
+    @Scheduled(initialDelay=30000, fixedRate=10000)
+    public void commitSearchIndex() {
+        searchIndex.maybeCommit();
+    }
+
+    @Scheduled(initialDelay=300000, fixedRate=3600000)
+    public void purgeSearchIndex() {
+        LOG.debug("Scheduled purging of orphans from Lucene index.");
+        searchIndex.purgeOrphans();
+    }
+
+    /** @api {get} /reindexstatus Search index rebuild status
+        @apiName ReindexStatus
+        @apiDescription Returns the progress of the current or last full reindexing of the search index. When the index version changes the index is rebuilt in the background, while searches keep using the old index until the new one has caught up.
+
+        @apiSuccessExample {json} Example successful response:
+            HTTP/1.1 200 OK
+            {
+                "state": "RUNNING",
+                "version": "8_English",
+                "total": 120000,
+                "done": 45000,
+                "started": 1508312400000,
+                "etaSeconds": 95
+            }
+        @apiPermission admin
+        @apiGroup Status
+        @apiVersion 0.2.0
+    */
+    @RequestMapping(value="/reindexstatus", method = RequestMethod.GET)
+    public ResponseEntity<ReindexProgress> reindexStatus(Authentication auth)
+        throws NotAuthorizedException
+    {
+        User user = getUser(auth);
+        if (user == null || user.role != Role.ADMIN)
+            throw new NotAuthorizedException("Access denied.");
+
+        return new ResponseEntity<ReindexProgress>(searchIndex.getReindexProgress(),
+                                                   HttpStatus.OK);
+    }
+
+    /** @api {get} /searchcachestatus Search result cache status
+        @apiName SearchCacheStatus
+        @apiDescription Returns the counters of the cache of recent search results. Cached results are used until the user's data in the search index changes, and identical searches running at the same time are only performed once.
+
+        @apiSuccessExample {json} Example successful response:
+            HTTP/1.1 200 OK
+            {
+                "size": 120,
+                "maxSize": 256,
+                "hits": 5230,
+                "misses": 810,
+                "coalesced": 42,
+                "evictions": 0,
+                "invalidations": 690
+            }
+        @apiPermission admin
+        @apiGroup Status
+        @apiVersion 0.2.0
+    */
+    @RequestMapping(value="/searchcachestatus", method = RequestMethod.GET)
+    public ResponseEntity<ResultCache.Stats> searchCacheStatus(Authentication auth)
+        throws NotAuthorizedException
+    {
+        User user = getUser(auth);
+        if (user == null || user.role != Role.ADMIN)
+            throw new NotAuthorizedException("Access denied.");
+
+        return new ResponseEntity<ResultCache.Stats>(searchIndex.getResultCacheStats(),
+                                                     HttpStatus.OK);
+    }
+
+    /**
+       Helper method to collect the optional search parameters.
+    */
+    protected SearchOptions searchOptions(String cursor, String[] facets,
+                                          int facetLimit, String actor,
+                                          String tag, String month,
+                                          String after, String before,
+                                          double recency, int snippets)
+        throws ParseException
+    {
+        SearchOptions options = new SearchOptions();
+        options.cursor = cursor;
+        if (facets != null)
+            options.facets.addAll(Arrays.asList(facets));
+        options.facetLimit = facetLimit;
+        options.drillDown(Facets.ACTOR, actor)
+            .drillDown(Facets.TAG, tag)
+            .drillDown(Facets.MONTH, month);
+
+        // Dates are parsed as in the event queries
+        DateFormat df = objectMapper.getDeserializationConfig().getDateFormat();
+        if (after != null)
+            options.after = df.parse(after);
+        if (before != null)
+            options.before = df.parse(before);
+        options.recencyHalfLife = recency;
+        options.snippets = snippets;
+        return options;
+    }
+
     /**
        Helper method to transform the search results into an
        appropriate format for returning from the API.
@@ -253,18 +363,21 @@ public class ApiController extends AuthorizedController {
 
     protected SearchResults doSearch(SearchQuery query, String className,
                                      String typeName, int limit, User user,
-                                     WeightType termWeighting, boolean updateIndex)
+                                     WeightType termWeighting, boolean updateIndex,
+                                     boolean light, SearchOptions options)
         throws IOException, SearchQueryException
     {
         if (query.isEmpty())
             return new SearchResults();
 
-        if (updateIndex)
+        if (updateIndex) {
             searchIndex.updateIndex();
+            searchIndex.flushTags();
+        }
 
         SearchResults res = searchIndex.search(query, className, typeName,
                                                limit, user.getId(),
-                                               termWeighting);
+                                               termWeighting, light, options);
         searchIndex.mapToElements(res);
 
         LOG.info("Search query \"{}\" (limit={}) returned {} results.",
@@ -280,18 +393,21 @@ public class ApiController extends AuthorizedController {
 
     protected SearchResults doEventSearch(SearchQuery query, String className,
                                           String typeName, int limit, User user,
-                                          WeightType termWeighting, boolean updateIndex)
+                                          WeightType termWeighting, boolean updateIndex,
+                                          boolean light, SearchOptions options)
         throws IOException, SearchQueryException
     {
         if (query.isEmpty())
             return new SearchResults();
 
-        if (updateIndex)
+        if (updateIndex) {
             searchIndex.updateIndex();
+            searchIndex.flushTags();
+        }
 
         SearchResults res = searchIndex.search(query, className, typeName,
                                                limit, user.getId(),
-                                               termWeighting);
+                                               termWeighting, light, options);
         searchIndex.mapToEvents(res, user);
 
         LOG.info("Search query \"{}\" (limit={}) returned {} results.",
@@ -316,7 +432,18 @@ It returns an object that contains some meta-data and in the "docs" element a li
 
         @apiParam (Options) {Number} [limit] limit the number of results
         @apiParam (Options) {Boolean} [includeTerms] set to "true" in order to include indexing terms
-        @apiParam (Options) {Boolean} [updateIndex] set to "true" to force an index update before the search
+        @apiParam (Options) {Boolean} [updateIndex] set to "true" to force an index update, including any pending automatic tags, before the search
+        @apiParam (Options) {Boolean} [light] set to "true" to return only id, title, uri, type, class, time and score of each result, read directly from the search index. Full objects can be fetched separately by id.
+        @apiParam (Options) {String} [cursor] the "nextCursor" of the previous page of results, to get the next page of the same search. The response has a "nextCursor" as long as there may be more results. Pages of one search are consistent even if the index changes meanwhile, but cursors expire after a few minutes without use.
+        @apiParam (Options) {String} [facets] comma-separated list of facets to count over all matching objects, returned in "facets" as the number of matches per value. The facets are "@type", "type", "actor", "tag" and "month" (as YYYY-MM).
+        @apiParam (Options) {Number} [facetLimit] number of values to return per facet, the most common first, default 10
+        @apiParam (Options) {String} [actor] only return objects with the given actor
+        @apiParam (Options) {String} [tag] only return objects with the given tag
+        @apiParam (Options) {String} [month] only return objects from the given month, as YYYY-MM
+        @apiParam (Options) {String} [after] only return objects starting at or after the given time, in the same format as for <a href="#api-Events-GetAll">event queries</a>. Events start at their start time, other objects at their last modification time.
+        @apiParam (Options) {String} [before] only return objects ending at or before the given time
+        @apiParam (Options) {Number} [recency] rank recent objects higher: the score is halved for every given number of days since the object ended. By default results are ranked by relevance only.
+        @apiParam (Options) {Number} [snippets] return up to this many fragments of the text around the query terms in "snippets" of each result, instead of the full plainTextContent. The fragments are HTML-escaped, with the query terms in &lt;em&gt; tags.
 
         @apiSuccessExample {json} Example successful response:
             HTTP/1.1 200 OK
@@ -379,21 +506,36 @@ It returns an object that contains some meta-data and in the "docs" element a li
                @RequestParam(value="includeTerms", required=false, 
                              defaultValue="") String includeTerms,
                @RequestParam(defaultValue="-1") int limit,
-               @RequestParam(defaultValue="false") boolean updateIndex)
+               @RequestParam(defaultValue="false") boolean updateIndex,
+               @RequestParam(defaultValue="false") boolean light,
+               @RequestParam(required=false) String cursor,
+               @RequestParam(required=false) String[] facets,
+               @RequestParam(defaultValue="10") int facetLimit,
+               @RequestParam(required=false) String actor,
+               @RequestParam(required=false) String tag,
+               @RequestParam(required=false) String month,
+               @RequestParam(required=false) String after,
+               @RequestParam(required=false) String before,
+               @RequestParam(defaultValue="0") double recency,
+               @RequestParam(defaultValue="0") int snippets)
     {
         User user = getUser(auth);
 
         try {
             TextSearchQuery textQuery = new TextSearchQuery(query);
             SearchResults results = doSearch(textQuery, className, typeName, limit, user, 
-                                             weightType(includeTerms), updateIndex);
+                                             weightType(includeTerms), updateIndex,
+                                             light, searchOptions(cursor, facets, facetLimit,
+                                                                  actor, tag, month,
+                                                                  after, before, recency,
+                                                                  snippets));
 
             return new ResponseEntity<SearchResults>(results, HttpStatus.OK);
         } catch (IOException e) {
             return new ResponseEntity<SearchResults>
                 (new SearchResults(e.getMessage()),
                  HttpStatus.INTERNAL_SERVER_ERROR);
-        } catch (SearchQueryException e) {
+        } catch (SearchQueryException | ParseException e) {
             return new ResponseEntity<SearchResults>
                 (new SearchResults(e.getMessage()),
                  HttpStatus.BAD_REQUEST);
@@ -424,7 +566,18 @@ The return format is the same as for the <a href="#api-Search-SearchInformationE
 
         @apiParam (Options) {Number} [limit] limit the number of results
         @apiParam (Options) {Boolean} [includeTerms] set to "true" in order to include indexing terms
-        @apiParam (Options) {Boolean} [updateIndex] set to "true" to force an index update before the search
+        @apiParam (Options) {Boolean} [updateIndex] set to "true" to force an index update, including any pending automatic tags, before the search
+        @apiParam (Options) {Boolean} [light] set to "true" to return only id, type, class, start time and score of each event, and id, title and uri of its information element, read directly from the search index.
+        @apiParam (Options) {String} [cursor] the "nextCursor" of the previous page of results, to get the next page, as for the <a href="#api-Search-SearchInformationElement">information element search</a>.
+        @apiParam (Options) {String} [facets] comma-separated list of facets to count, as for the information element search. Facets are counted over the matching objects before they are mapped to events.
+        @apiParam (Options) {Number} [facetLimit] number of values to return per facet, default 10
+        @apiParam (Options) {String} [actor] only return objects with the given actor
+        @apiParam (Options) {String} [tag] only return objects with the given tag
+        @apiParam (Options) {String} [month] only return objects from the given month, as YYYY-MM
+        @apiParam (Options) {String} [after] only return objects starting at or after the given time, in the same format as for <a href="#api-Events-GetAll">event queries</a>. Events start at their start time, other objects at their last modification time.
+        @apiParam (Options) {String} [before] only return objects ending at or before the given time
+        @apiParam (Options) {Number} [recency] rank recent objects higher: the score is halved for every given number of days since the object ended. By default results are ranked by relevance only.
+        @apiParam (Options) {Number} [snippets] return up to this many fragments of the text around the query terms in "snippets" of each result, instead of the full plainTextContent. The fragments are HTML-escaped, with the query terms in &lt;em&gt; tags.
 
         @apiPermission user
         @apiGroup Search
@@ -439,20 +592,35 @@ The return format is the same as for the <a href="#api-Search-SearchInformationE
                     @RequestParam(value="includeTerms", required=false,
                                   defaultValue="") String includeTerms,
                     @RequestParam(defaultValue="-1") int limit,
-                    @RequestParam(defaultValue="false") boolean updateIndex) {
+                    @RequestParam(defaultValue="false") boolean updateIndex,
+                    @RequestParam(defaultValue="false") boolean light,
+                    @RequestParam(required=false) String cursor,
+                    @RequestParam(required=false) String[] facets,
+                    @RequestParam(defaultValue="10") int facetLimit,
+                    @RequestParam(required=false) String actor,
+                    @RequestParam(required=false) String tag,
+                    @RequestParam(required=false) String month,
+                    @RequestParam(required=false) String after,
+                    @RequestParam(required=false) String before,
+                    @RequestParam(defaultValue="0") double recency,
+                    @RequestParam(defaultValue="0") int snippets) {
         User user = getUser(auth);
 
         try {
             TextSearchQuery textQuery = new TextSearchQuery(query);
             SearchResults results = doEventSearch(textQuery, className, typeName, limit, user,
-                                                  weightType(includeTerms), updateIndex);
+                                                  weightType(includeTerms), updateIndex,
+                                                  light, searchOptions(cursor, facets, facetLimit,
+                                                                       actor, tag, month,
+                                                                       after, before, recency,
+                                                                       snippets));
 
             return new ResponseEntity<SearchResults>(results, HttpStatus.OK);
         } catch (IOException e) {
             return new ResponseEntity<SearchResults>
                 (new SearchResults(e.getMessage()),
                  HttpStatus.INTERNAL_SERVER_ERROR);
-        } catch (SearchQueryException e) {
+        } catch (SearchQueryException | ParseException e) {
             return new ResponseEntity<SearchResults>
                 (new SearchResults(e.getMessage()),
                  HttpStatus.BAD_REQUEST);
@@ -463,7 +631,10 @@ The return format is the same as for the <a href="#api-Search-SearchInformationE
         @api {post} /keywordsearch 
         @apiName KeywordSearch
         @apiDescription Perform an information element search based on
-        the POSTed weighted keywords.
+        the POSTed weighted keywords. The keywords are analyzed like the
+        indexed text, and only those with the highest weights are used,
+        up to a limit configured on the server. The keywords actually
+        used are returned in "queryTerms".
 
         @apiPermission user
         @apiGroup Search
@@ -478,7 +649,7 @@ The return format is the same as for the <a href="#api-Search-SearchInformationE
         try {
             KeywordSearchQuery query = new KeywordSearchQuery(input);
             SearchResults results = doSearch(query, null, null,  -1, user, 
-                                             WeightType.Tf, true);
+                                             WeightType.Tf, true, false, new SearchOptions());
             return new ResponseEntity<SearchResults>(results, HttpStatus.OK);
         } catch (IOException e) {
             return new ResponseEntity<SearchResults>
@@ -495,6 +666,7 @@ The return format is the same as for the <a href="#api-Search-SearchInformationE
         @api {post} /eventkeywordsearch 
         @apiName EventKeywordSearch
         @apiDescription Perform an event search based on the POSTed weighted keywords.
+        The keywords are limited as for the <a href="#api-Search-KeywordSearch">information element keyword search</a>.
 
         @apiPermission user
         @apiGroup Search
@@ -509,7 +681,90 @@ The return format is the same as for the <a href="#api-Search-SearchInformationE
         try {
             KeywordSearchQuery query = new KeywordSearchQuery(input);
             SearchResults results = doEventSearch(query, null, null, -1, user, 
-                                                  WeightType.Tf, true);
+                                                  WeightType.Tf, true, false, new SearchOptions());
+
+            return new ResponseEntity<SearchResults>(results, HttpStatus.OK);
+        } catch (IOException e) {
+            return new ResponseEntity<SearchResults>
+                (new SearchResults(e.getMessage()),
+                 HttpStatus.INTERNAL_SERVER_ERROR);
+        } catch (SearchQueryException e) {
+            return new ResponseEntity<SearchResults>
+                (new SearchResults(e.getMessage()),
+                 HttpStatus.BAD_REQUEST);
+        }
+    }
+
+    /**
+        @api {get} /similar/:kind/:id Similar objects
+        @apiName SearchSimilar
+        @apiDescription Find the objects most similar to the given
+        event or information element, i.e. those sharing its most
+        characteristic terms. The terms are taken directly from the
+        search index, with limits configured on the server, and
+        returned in "queryTerms". The object itself is not included
+        in the results, nor are the events of an information element
+        or the information element of an event.
+
+Events are searched for similar events and information elements for
+        similar information elements. The return format is the same as
+        for the <a href="#api-Search-SearchInformationElement">information
+        element search</a>.
+
+        @apiParam {String} kind "event" or "informationelement"
+        @apiParam {Number} id Id of the object
+
+        @apiParam (Options) {Number} [limit] limit the number of results, default 10
+        @apiParam (Options) {Boolean} [includeTerms] set to "true" in order to include indexing terms
+        @apiParam (Options) {Boolean} [updateIndex] set to "true" to force an index update before the search
+        @apiParam (Options) {Boolean} [light] set to "true" to return light results, as for the information element search
+        @apiParam (Options) {Number} [snippets] return up to this many fragments of the text instead of the full plainTextContent, as for the information element search
+
+        @apiPermission user
+        @apiGroup Search
+        @apiVersion 0.1.2
+    */
+    @RequestMapping(value="/similar/{kind}/{id}", method = RequestMethod.GET)
+    public ResponseEntity<SearchResults>
+        similar(Authentication auth, @PathVariable String kind,
+                @PathVariable Long id,
+                @RequestParam(value="@type", required=false) String className,
+                @RequestParam(value="type", required=false) String typeName,
+                @RequestParam(value="includeTerms", required=false,
+                              defaultValue="") String includeTerms,
+                @RequestParam(defaultValue="10") int limit,
+                @RequestParam(defaultValue="false") boolean updateIndex,
+                @RequestParam(defaultValue="false") boolean light,
+                @RequestParam(defaultValue="0") int snippets)
+        throws NotFoundException, BadRequestException
+    {
+        User user = getUser(auth);
+
+        DiMeData obj;
+        if (kind.equals("event"))
+            obj = eventDAO.findById(id, user);
+        else if (kind.equals("informationelement"))
+            obj = infoElemDAO.findById(id, user);
+        else
+            throw new BadRequestException("Unknown kind: " + kind);
+
+        if (obj == null)
+            throw new NotFoundException("id not found");
+
+        SearchOptions options = new SearchOptions();
+        options.snippets = snippets;
+
+        try {
+            SimilarSearchQuery query = new SimilarSearchQuery(obj);
+            SearchResults results;
+            if (kind.equals("event"))
+                results = doEventSearch(query, className, typeName, limit, user,
+                                        weightType(includeTerms), updateIndex,
+                                        light, options);
+            else
+                results = doSearch(query, className, typeName, limit, user,
+                                   weightType(includeTerms), updateIndex,
+                                   light, options);
 
             return new ResponseEntity<SearchResults>(results, HttpStatus.OK);
         } catch (IOException e) {
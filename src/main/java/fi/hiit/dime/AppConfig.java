@@ -30,6 +30,7 @@ import com.fasterxml.jackson.databind.MapperFeature;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.optimaize.langdetect.LanguageDetector;
 import com.optimaize.langdetect.LanguageDetectorBuilder;
+import com.optimaize.langdetect.i18n.LdLocale;
 import com.optimaize.langdetect.ngram.NgramExtractors;
 import com.optimaize.langdetect.profiles.LanguageProfile;
 import com.optimaize.langdetect.profiles.LanguageProfileReader;
@@ -41,6 +42,7 @@ import org.springframework.boot.context.embedded.EmbeddedServletContainerCustomi
 import org.springframework.boot.context.embedded.ErrorPage;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Lazy;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
 import org.springframework.scheduling.annotation.EnableScheduling;
@@ -49,6 +51,7 @@ import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
 import org.springframework.web.servlet.config.annotation.WebMvcConfigurerAdapter;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.List;
 
 @Configuration
@@ -63,13 +66,26 @@ public class AppConfig {
 
     @Bean
     public SearchIndex searchIndex() throws Exception {
-	return new SearchIndex(dimeConfig.getLuceneIndexPath(),
-                               dimeConfig.getLuceneAnalyzer());
+	return new SearchIndex(dimeConfig);
     }
 
+    /** The language profiles take a while to load, so the detector
+        is only created when a language is first detected. */
     @Bean
+    @Lazy
     public LanguageDetector languageDetector() throws IOException {
-        List<LanguageProfile> languageProfiles = new LanguageProfileReader().readAllBuiltIn();
+        String[] languages = dimeConfig.getLanguageDetectionLanguages();
+        List<LanguageProfile> languageProfiles;
+        if (languages == null || languages.length == 0) {
+            languageProfiles = new LanguageProfileReader().readAllBuiltIn();
+        } else {
+            List<LdLocale> locales = new ArrayList<LdLocale>();
+            for (String language : languages)
+                locales.add(LdLocale.fromString(language.trim()));
+            languageProfiles = new LanguageProfileReader().readBuiltIn(locales);
+        }
+        LOG.info("Loaded {} language detection profiles.",
+                 languageProfiles.size());
 
         return LanguageDetectorBuilder.create(NgramExtractors.standard())
             .withProfiles(languageProfiles)
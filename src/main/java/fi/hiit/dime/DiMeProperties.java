@@ -41,6 +41,158 @@ public class DiMeProperties {
     }
     public String getLuceneAnalyzer() { return luceneAnalyzer; }
 
+    /** Languages whose text is also indexed in a field of its own,
+        with the Lucene analyzer of the language, as language:name
+        pairs, e.g. "fi:Finnish" for the FinnishAnalyzer. */
+    private String[] luceneLanguageAnalyzers = { "en:English", "fi:Finnish",
+                                                 "sv:Swedish" };
+    public void setLuceneLanguageAnalyzers(String[] s) { luceneLanguageAnalyzers = s; }
+    public String[] getLuceneLanguageAnalyzers() { return luceneLanguageAnalyzers; }
+
+    /** Languages that may be detected, as language codes, e.g. "fi".
+        Only the profiles of these languages are loaded. Empty to
+        detect all languages known to the detector. */
+    private String[] languageDetectionLanguages = {};
+    public void setLanguageDetectionLanguages(String[] s) { languageDetectionLanguages = s; }
+    public String[] getLanguageDetectionLanguages() { return languageDetectionLanguages; }
+
+    /** Seconds between commits of the Lucene index when there are
+        pending changes. */
+    private int luceneCommitInterval = 60;
+    public void setLuceneCommitInterval(int i) { luceneCommitInterval = i; }
+    public int getLuceneCommitInterval() { return luceneCommitInterval; }
+
+    /** Number of pending changes that forces a commit of the Lucene
+        index before the commit interval has passed. */
+    private int luceneCommitMaxDocs = 1000;
+    public void setLuceneCommitMaxDocs(int i) { luceneCommitMaxDocs = i; }
+    public int getLuceneCommitMaxDocs() { return luceneCommitMaxDocs; }
+
+    /** RAM buffer of the Lucene IndexWriter, segments are flushed when
+        it is full. */
+    private double luceneRamBufferSizeMB = 64.0;
+    public void setLuceneRamBufferSizeMB(double d) { luceneRamBufferSizeMB = d; }
+    public double getLuceneRamBufferSizeMB() { return luceneRamBufferSizeMB; }
+
+    /** Number of buffered documents that triggers a segment flush,
+        -1 to flush only based on RAM usage. */
+    private int luceneMaxBufferedDocs = -1;
+    public void setLuceneMaxBufferedDocs(int i) { luceneMaxBufferedDocs = i; }
+    public int getLuceneMaxBufferedDocs() { return luceneMaxBufferedDocs; }
+
+    /** Number of queued index changes applied in one database
+        transaction. */
+    private int luceneIndexBatchSize = 500;
+    public void setLuceneIndexBatchSize(int i) { luceneIndexBatchSize = i; }
+    public int getLuceneIndexBatchSize() { return luceneIndexBatchSize; }
+
+    /** Number of objects read from the database at a time when
+        (re)indexing all objects, bounds the memory used. */
+    private int luceneReindexChunkSize = 1000;
+    public void setLuceneReindexChunkSize(int i) { luceneReindexChunkSize = i; }
+    public int getLuceneReindexChunkSize() { return luceneReindexChunkSize; }
+
+    /** Number of worker threads used for indexing, 0 to use one per
+        processor core. */
+    private int luceneIndexThreads = 0;
+    public void setLuceneIndexThreads(int i) { luceneIndexThreads = i; }
+    public int getLuceneIndexThreads() { return luceneIndexThreads; }
+
+    /** Store Lucene stored fields with higher compression. */
+    private boolean luceneCompressStoredFields = false;
+    public void setLuceneCompressStoredFields(boolean b) { luceneCompressStoredFields = b; }
+    public boolean getLuceneCompressStoredFields() { return luceneCompressStoredFields; }
+
+    /** Number of most frequent terms of each document stored for
+        serving keywords without the term vectors, 0 to disable. The
+        keywords of documents with more terms are read from the term
+        vectors. */
+    private int luceneKeywordsPerDoc = 100;
+    public void setLuceneKeywordsPerDoc(int i) { luceneKeywordsPerDoc = i; }
+    public int getLuceneKeywordsPerDoc() { return luceneKeywordsPerDoc; }
+
+    /** Maximum number of terms of a keyword search, the keywords
+        with the highest weights are used. */
+    private int luceneKeywordQueryMaxTerms = 200;
+    public void setLuceneKeywordQueryMaxTerms(int i) { luceneKeywordQueryMaxTerms = i; }
+    public int getLuceneKeywordQueryMaxTerms() { return luceneKeywordQueryMaxTerms; }
+
+    /** Maximum number of objects per second given auto-generated
+        tags in the background, 0 for no limit. */
+    private int luceneAutoTagRate = 100;
+    public void setLuceneAutoTagRate(int i) { luceneAutoTagRate = i; }
+    public int getLuceneAutoTagRate() { return luceneAutoTagRate; }
+
+    /** How the Lucene index is split: "none" for a single index,
+        "user" for one index per user, "shards" for a fixed number of
+        shards. */
+    private String lucenePartitioning = "none";
+    public void setLucenePartitioning(String s) { lucenePartitioning = s; }
+    public String getLucenePartitioning() { return lucenePartitioning; }
+
+    /** Seconds after their last use that per-user index partitions
+        are closed. */
+    private int luceneUserPartitionIdleTime = 600;
+    public void setLuceneUserPartitionIdleTime(int i) { luceneUserPartitionIdleTime = i; }
+    public int getLuceneUserPartitionIdleTime() { return luceneUserPartitionIdleTime; }
+
+    /** Number of shards with "shards" partitioning. */
+    private int luceneShards = 4;
+    public void setLuceneShards(int i) { luceneShards = i; }
+    public int getLuceneShards() { return luceneShards; }
+
+    /** What objects are assigned to shards by: "user" or "id". */
+    private String luceneShardKey = "user";
+    public void setLuceneShardKey(String s) { luceneShardKey = s; }
+    public String getLuceneShardKey() { return luceneShardKey; }
+
+    /** Number of threads searching index partitions concurrently,
+        0 for one per processor. */
+    private int luceneSearchThreads = 0;
+    public void setLuceneSearchThreads(int i) { luceneSearchThreads = i; }
+    public int getLuceneSearchThreads() { return luceneSearchThreads; }
+
+    /** Maximum number of searches whose results are cached, 0 to
+        disable the cache. */
+    private int luceneResultCacheSize = 256;
+    public void setLuceneResultCacheSize(int i) { luceneResultCacheSize = i; }
+    public int getLuceneResultCacheSize() { return luceneResultCacheSize; }
+
+    /** Seconds that a search cursor stays valid after its last
+        use. */
+    private int luceneCursorLifetime = 300;
+    public void setLuceneCursorLifetime(int i) { luceneCursorLifetime = i; }
+    public int getLuceneCursorLifetime() { return luceneCursorLifetime; }
+
+    /** Maximum number of index views kept open for search cursors,
+        the least recently used one is given up first. */
+    private int luceneCursorMaxSearchers = 16;
+    public void setLuceneCursorMaxSearchers(int i) { luceneCursorMaxSearchers = i; }
+    public int getLuceneCursorMaxSearchers() { return luceneCursorMaxSearchers; }
+
+    /** Minimum frequency in the source document of the terms of a
+        similar objects query. */
+    private int luceneSimilarMinTermFreq = 1;
+    public void setLuceneSimilarMinTermFreq(int i) { luceneSimilarMinTermFreq = i; }
+    public int getLuceneSimilarMinTermFreq() { return luceneSimilarMinTermFreq; }
+
+    /** Minimum number of documents containing a term of a similar
+        objects query. */
+    private int luceneSimilarMinDocFreq = 2;
+    public void setLuceneSimilarMinDocFreq(int i) { luceneSimilarMinDocFreq = i; }
+    public int getLuceneSimilarMinDocFreq() { return luceneSimilarMinDocFreq; }
+
+    /** Maximum percentage of documents containing a term of a
+        similar objects query. */
+    private int luceneSimilarMaxDocFreq = 50;
+    public void setLuceneSimilarMaxDocFreq(int i) { luceneSimilarMaxDocFreq = i; }
+    public int getLuceneSimilarMaxDocFreq() { return luceneSimilarMaxDocFreq; }
+
+    /** Maximum number of terms in a similar objects query. */
+    private int luceneSimilarMaxTerms = 25;
+    public void setLuceneSimilarMaxTerms(int i) { luceneSimilarMaxTerms = i; }
+    public int getLuceneSimilarMaxTerms() { return luceneSimilarMaxTerms; }
+
     private String[] corsAllowOrigin = null;
     public void setCorsAllowOrigin(String[] s) { corsAllowOrigin = s; }
     public String[] getCorsAllowOrigin() { return corsAllowOrigin; }
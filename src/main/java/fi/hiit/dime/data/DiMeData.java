@@ -131,6 +131,11 @@ public class DiMeData extends AbstractPersistable<Long> {
     @Transient
     public List<WeightedKeyword> weightedKeywords;
 
+    /** Fragments of the text around the query terms, with the terms
+        highlighted, if requested in a search. */
+    @Transient
+    public List<String> snippets;
+
     /** List of user-specified tags, interpretation depends on the
         application.
     */
@@ -252,9 +257,13 @@ public class DiMeData extends AbstractPersistable<Long> {
     }
 
     public static <T extends DiMeData> T makeStub(T data, Class<T> dataType) {
+        return makeStub(data.getId(), dataType);
+    }
+
+    public static <T extends DiMeData> T makeStub(Long id, Class<T> dataType) {
         try {
             T stub = dataType.newInstance();
-            stub.setId(data.getId());
+            stub.setId(id);
             return stub;
         } catch (InstantiationException|IllegalAccessException ex) {
             LOG.error("Unable to create stub of class {}!", dataType.getName());
@@ -26,11 +26,14 @@ package fi.hiit.dime.database;
 
 import fi.hiit.dime.data.DiMeData;
 import fi.hiit.dime.authentication.User;
+import fi.hiit.dime.database.IndexOutboxEntry.Op;
 
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.domain.PageRequest;
 import org.springframework.transaction.annotation.Transactional;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Date;
 import java.util.HashSet;
 import java.util.List;
@@ -41,6 +44,9 @@ public class DiMeDAO<T extends DiMeData, R extends DiMeRepository<T>> {
     @Autowired
     protected R repo;
 
+    @Autowired
+    protected IndexOutboxDAO indexOutbox;
+
     @Transactional
     public void save(T obj) {
         save(obj, true);
@@ -52,15 +58,17 @@ public class DiMeDAO<T extends DiMeData, R extends DiMeRepository<T>> {
             obj.timeCreated = new Date();
         obj.timeModified = new Date();
 
-        if (index)
-            notIndexed.add(obj);
         repo.save(obj);
+        if (index)
+            indexOutbox.add(obj, Op.UPDATE);
     }
 
     @Transactional
     public T replace(T oldObj, T newObj) {
         newObj.timeModified = new Date();
-        return repo.replace(oldObj, newObj);
+        T obj = repo.replace(oldObj, newObj);
+        indexOutbox.add(obj, Op.UPDATE);
+        return obj;
     }
 
     /**
@@ -103,6 +111,63 @@ public class DiMeDAO<T extends DiMeData, R extends DiMeRepository<T>> {
         return null;
     }
 
+    /**
+       Find DiMeData objects by their unique ids with a single query.
+
+       @param ids Unique ids of DiMeData objects.
+       @return The DiMeData objects found, in no particular order.
+    */
+    @Transactional(readOnly = true)
+    public List<T> findByIds(Collection<Long> ids) {
+        List<T> ret = new ArrayList<T>();
+        if (!ids.isEmpty())
+            for (T obj : repo.findAll(ids))
+                ret.add(obj);
+        return ret;
+    }
+
+    /**
+       Find DiMeData objects of a given user by their unique ids with a
+       single query.
+
+       @param ids Unique ids of DiMeData objects.
+       @param user User
+       @return The DiMeData objects found, in no particular order.
+    */
+    @Transactional(readOnly = true)
+    public List<T> findByIds(Collection<Long> ids, User user) {
+        if (ids.isEmpty())
+            return new ArrayList<T>();
+        return repo.findByIdInAndUser(ids, user);
+    }
+
+    /**
+       Return those of the given ids that still exist in the database.
+
+       @param ids Unique ids of DiMeData objects.
+       @return The existing ids.
+    */
+    @Transactional(readOnly = true)
+    public Set<Long> existingIds(Collection<Long> ids) {
+        Set<Long> ret = new HashSet<Long>();
+        if (!ids.isEmpty())
+            ret.addAll(repo.findIdsByIdIn(ids));
+        return ret;
+    }
+
+    /**
+       Returns a chunk of DiMeData objects ordered by id, for walking
+       through all objects with bounded memory.
+
+       @param afterId Return objects with ids greater than this
+       @param limit Maximum number of objects to return
+    */
+    @Transactional(readOnly = true)
+    public List<T> findChunk(Long afterId, int limit) {
+        return repo.findByIdGreaterThanOrderByIdAsc(afterId,
+                                                    new PageRequest(0, limit));
+    }
+
     /**
        Returns all DiMeData objects.
     */
@@ -134,6 +199,14 @@ public class DiMeDAO<T extends DiMeData, R extends DiMeRepository<T>> {
         return repo.countByUser(user);
     }
 
+    /**
+       Returns the number of objects of all users.
+    */
+    @Transactional(readOnly = true)
+    public long countAll() {
+        return repo.count();
+    }
+
     /**
        Removes all items for user.
 
@@ -142,7 +215,16 @@ public class DiMeDAO<T extends DiMeData, R extends DiMeRepository<T>> {
     */
     @Transactional
     public long removeForUser(Long id) {
-        return repo.deleteByUser(User.makeUser(id));
+        long count = repo.deleteByUser(User.makeUser(id));
+        indexOutbox.addUserDelete(id, indexKind());
+        return count;
+    }
+
+    /**
+       Kind of the objects handled by this DAO in the index outbox.
+    */
+    protected String indexKind() {
+        return IndexOutboxEntry.ELEM;
     }
 
     /**
@@ -159,6 +241,7 @@ public class DiMeDAO<T extends DiMeData, R extends DiMeRepository<T>> {
             return false;
 
         repo.delete(d);
+        indexOutbox.add(d, Op.DELETE);
         return true;
     }
 
@@ -177,31 +260,4 @@ public class DiMeDAO<T extends DiMeData, R extends DiMeRepository<T>> {
 
         return ret;
     }
-
-    protected Set<T> notIndexed = new HashSet<T>();
-
-    public int countNotIndexed() {
-        return notIndexed.size();
-    }
-
-    public boolean hasUnIndexed() {
-        return !notIndexed.isEmpty();
-    }
-
-    public Set<T> getNotIndexed() {
-        Set<T> ret = new HashSet<T>();
-
-        // Return only items that still exist
-        for (T d : notIndexed) {
-            T toAdd = findById(d.getId());
-            if (toAdd != null)
-                ret.add(toAdd);
-        }
-
-        return ret;
-    }
-
-    public void clearNotIndexed() {
-        notIndexed.clear();
-    }
 }
@@ -29,12 +29,15 @@ import fi.hiit.dime.authentication.User;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.jpa.repository.Query;
 import org.springframework.data.repository.CrudRepository;
 import org.springframework.data.repository.NoRepositoryBean;
 
 import java.sql.Timestamp;
 import java.text.DateFormat;
 import java.text.ParseException;
+import java.util.Collection;
 import java.util.Date;
 import java.util.List;
 import java.util.Map;
@@ -107,6 +110,10 @@ public interface DiMeRepository<T extends DiMeData>
 
     T findOneByIdAndUser(Long id, User user);
 
+    List<T> findByIdInAndUser(Collection<Long> ids, User user);
+
+    List<T> findByIdGreaterThanOrderByIdAsc(Long id, Pageable pageable);
+
     // T findOneByAppIdAndUser(String appId, User user);
 
     List<T> findByAppIdAndUserOrderByTimeModifiedDesc(String appId, User user);
@@ -116,4 +123,7 @@ public interface DiMeRepository<T extends DiMeData>
     Long countByUser(User user);
 
     Long deleteByUser(User user);
+
+    @Query("select d.id from #{#entityName} d where d.id in ?1")
+    List<Long> findIdsByIdIn(Collection<Long> ids);
 }
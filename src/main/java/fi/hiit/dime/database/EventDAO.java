@@ -45,6 +45,11 @@ import java.util.List;
 public class EventDAO extends DiMeDAO<Event, EventRepository> {
     private static final Logger LOG = LoggerFactory.getLogger(EventDAO.class);
 
+    @Override
+    protected String indexKind() {
+        return IndexOutboxEntry.EVENT;
+    }
+
     @Transactional(readOnly = true)
     public List<ResourcedEvent> findByElement(InformationElement elem, User user) {
         return repo.findByTargettedResourceAndUser(elem, user);
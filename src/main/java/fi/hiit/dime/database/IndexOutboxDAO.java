@@ -0,0 +1,160 @@
+/*
+  Copyright (c) 2015-2016 University of Helsinki
+
+  Permission is hereby granted, free of charge, to any person
+  obtaining a copy of this software and associated documentation files
+  (the "Software"), to deal in the Software without restriction,
+  including without limitation the rights to use, copy, modify, merge,
+  publish, distribute, sublicense, and/or sell copies of the Software,
+  and to permit persons to whom the Software is furnished to do so,
+  subject to the following conditions:
+
+  The above copyright notice and this permission notice shall be
+  included in all copies or substantial portions of the Software.
+
+  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+  EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+  MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+  NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+  BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+  ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+  CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+  SOFTWARE.
+*/
+
+package fi.hiit.dime.database;
+
+import fi.hiit.dime.data.DiMeData;
+import fi.hiit.dime.database.IndexOutboxEntry.Op;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+   Data access object for the queue of pending search index changes.
+*/
+@Service
+public class IndexOutboxDAO {
+    @Autowired
+    private IndexOutboxRepository repo;
+
+    /**
+       Queue a change to the search index. This joins the transaction
+       of the caller, so the entry is stored if and only if the
+       change to the object itself is.
+
+       @param obj The changed object
+       @param op Whether the object should be (re)indexed or deleted
+    */
+    @Transactional
+    public void add(DiMeData obj, Op op) {
+        if (obj.getId() != null)
+            repo.save(new IndexOutboxEntry(obj, op));
+    }
+
+    /**
+       Queue removal of all objects of the given kind belonging to a
+       user.
+
+       @param userId User id
+       @param kind Kind of objects, IndexOutboxEntry.ELEM or EVENT
+    */
+    @Transactional
+    public void addUserDelete(Long userId, String kind) {
+        repo.save(new IndexOutboxEntry(userId, kind));
+    }
+
+    /**
+       Check if there are entries not yet applied to the index.
+    */
+    @Transactional(readOnly = true)
+    public boolean hasPending() {
+        return repo.countByAppliedFalse() > 0;
+    }
+
+    /**
+       Return the oldest entries not yet applied to the index. This
+       is driven by the entries present rather than by a sequence
+       number, since an entry with a lower id may be committed after
+       ones with higher ids have already been applied.
+
+       @param limit Maximum number of entries to return
+    */
+    @Transactional(readOnly = true)
+    public List<IndexOutboxEntry> nextBatch(int limit) {
+        return repo.findByAppliedFalseOrderByIdAsc(new PageRequest(0, limit));
+    }
+
+    /**
+       Return the entries after the given id, applied or not, for
+       replaying all remaining changes to another index.
+
+       @param afterId Id of the last entry already returned
+       @param limit Maximum number of entries to return
+    */
+    @Transactional(readOnly = true)
+    public List<IndexOutboxEntry> nextBatchAfter(long afterId, int limit) {
+        return repo.findByIdGreaterThanOrderByIdAsc(afterId,
+                                                    new PageRequest(0, limit));
+    }
+
+    /**
+       Mark entries as applied to the index, so that they are not
+       returned by nextBatch() again.
+
+       @param ids Ids of the applied entries
+    */
+    @Transactional
+    public void markApplied(Collection<Long> ids) {
+        for (List<Long> chunk : chunks(ids))
+            repo.markApplied(chunk);
+    }
+
+    /**
+       Mark all entries as not applied, called on startup since
+       changes applied after the last index commit were lost.
+
+       @return Number of entries that will be applied again
+    */
+    @Transactional
+    public int resetApplied() {
+        return repo.resetApplied();
+    }
+
+    /**
+       Remove the given entries, once they have been committed to the
+       index.
+
+       @param ids Ids of the committed entries
+       @return Number of entries removed
+    */
+    @Transactional
+    public long remove(Collection<Long> ids) {
+        long count = 0;
+        for (List<Long> chunk : chunks(ids))
+            count += repo.deleteByIdIn(chunk);
+        return count;
+    }
+
+    // Keeps the "in" lists of the queries at a reasonable size
+    private static final int maxIdsPerQuery = 1000;
+
+    private static List<List<Long>> chunks(Collection<Long> ids) {
+        List<List<Long>> chunks = new ArrayList<List<Long>>();
+        List<Long> chunk = null;
+        for (Long id : ids) {
+            if (chunk == null || chunk.size() == maxIdsPerQuery) {
+                chunk = new ArrayList<Long>();
+                chunks.add(chunk);
+            }
+            chunk.add(id);
+        }
+        return chunks;
+    }
+}
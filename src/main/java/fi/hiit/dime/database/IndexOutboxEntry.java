@@ -0,0 +1,95 @@
+/*
+  Copyright (c) 2015-2016 University of Helsinki
+
+  Permission is hereby granted, free of charge, to any person
+  obtaining a copy of this software and associated documentation files
+  (the "Software"), to deal in the Software without restriction,
+  including without limitation the rights to use, copy, modify, merge,
+  publish, distribute, sublicense, and/or sell copies of the Software,
+  and to permit persons to whom the Software is furnished to do so,
+  subject to the following conditions:
+
+  The above copyright notice and this permission notice shall be
+  included in all copies or substantial portions of the Software.
+
+  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+  EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+  MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+  NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+  BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+  ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+  CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+  SOFTWARE.
+*/
+
+package fi.hiit.dime.database;
+
+import fi.hiit.dime.data.DiMeData;
+import fi.hiit.dime.data.Event;
+
+import org.springframework.data.jpa.domain.AbstractPersistable;
+
+import javax.persistence.Entity;
+
+/**
+   Pending change to the search index, stored in the database in the
+   same transaction as the change to the data itself. Only the ids
+   are stored, the objects are loaded when the change is applied to
+   the index. A deleted object leaves a DELETE entry as its
+   tombstone. The auto-incremented id gives the order of the
+   changes, but ids are handed out on insert, not on commit, so an
+   entry may become visible after entries with higher ids. Entries
+   are therefore tracked by the applied flag instead of by position.
+*/
+@Entity
+public class IndexOutboxEntry extends AbstractPersistable<Long> {
+    public enum Op {
+        // NOTE: stored as ordinal, only add new values at the end
+        UPDATE, DELETE, DELETE_USER;
+    }
+
+    public static final String ELEM = "elem";
+    public static final String EVENT = "event";
+
+    public IndexOutboxEntry() {}
+
+    public IndexOutboxEntry(DiMeData obj, Op op) {
+        this.userId = obj.user != null ? obj.user.getId() : null;
+        this.kind = kindOf(obj);
+        this.objectId = obj.getId();
+        this.op = op;
+    }
+
+    /**
+       Entry for removing all objects of the given kind belonging to
+       a user, objectId is left empty.
+    */
+    public IndexOutboxEntry(Long userId, String kind) {
+        this.userId = userId;
+        this.kind = kind;
+        this.op = Op.DELETE_USER;
+    }
+
+    /** Return the kind string of a DiMeData object, ELEM or EVENT. */
+    public static String kindOf(DiMeData obj) {
+        return obj instanceof Event ? EVENT : ELEM;
+    }
+
+    /** Id of the user owning the object. */
+    public Long userId;
+
+    /** Kind of object, ELEM or EVENT. */
+    public String kind;
+
+    /** Id of the InformationElement or Event, null for DELETE_USER. */
+    public Long objectId;
+
+    /** Operation to apply to the index. */
+    public Op op;
+
+    /**
+       Set when the change has been applied to the index, the entry
+       is removed once the index has been committed.
+    */
+    public boolean applied;
+}
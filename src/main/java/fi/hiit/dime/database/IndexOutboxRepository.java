@@ -0,0 +1,54 @@
+/*
+  Copyright (c) 2015-2016 University of Helsinki
+
+  Permission is hereby granted, free of charge, to any person
+  obtaining a copy of this software and associated documentation files
+  (the "Software"), to deal in the Software without restriction,
+  including without limitation the rights to use, copy, modify, merge,
+  publish, distribute, sublicense, and/or sell copies of the Software,
+  and to permit persons to whom the Software is furnished to do so,
+  subject to the following conditions:
+
+  The above copyright notice and this permission notice shall be
+  included in all copies or substantial portions of the Software.
+
+  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+  EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+  MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+  NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+  BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+  ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+  CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+  SOFTWARE.
+*/
+
+package fi.hiit.dime.database;
+
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.CrudRepository;
+
+import java.util.Collection;
+import java.util.List;
+
+public interface IndexOutboxRepository
+    extends CrudRepository<IndexOutboxEntry, Long>
+{
+    List<IndexOutboxEntry> findByAppliedFalseOrderByIdAsc(Pageable pageable);
+
+    List<IndexOutboxEntry> findByIdGreaterThanOrderByIdAsc(Long id,
+                                                           Pageable pageable);
+
+    Long countByAppliedFalse();
+
+    @Modifying
+    @Query("update IndexOutboxEntry e set e.applied = true where e.id in ?1")
+    int markApplied(Collection<Long> ids);
+
+    @Modifying
+    @Query("update IndexOutboxEntry e set e.applied = false where e.applied = true")
+    int resetApplied();
+
+    Long deleteByIdIn(Collection<Long> ids);
+}
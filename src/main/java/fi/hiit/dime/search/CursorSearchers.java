@@ -0,0 +1,188 @@
+/*
+  Copyright (c) 2015-2016 University of Helsinki
+
+  Permission is hereby granted, free of charge, to any person
+  obtaining a copy of this software and associated documentation files
+  (the "Software"), to deal in the Software without restriction,
+  including without limitation the rights to use, copy, modify, merge,
+  publish, distribute, sublicense, and/or sell copies of the Software,
+  and to permit persons to whom the Software is furnished to do so,
+  subject to the following conditions:
+
+  The above copyright notice and this permission notice shall be
+  included in all copies or substantial portions of the Software.
+
+  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+  EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+  MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+  NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+  BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+  ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+  CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+  SOFTWARE.
+*/
+
+package fi.hiit.dime.search;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.search.IndexSearcher;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+   Keeps the searchers that search cursors refer to, so that the
+   following pages of a search are taken from the same point-in-time
+   view of the index even if it has been refreshed meanwhile.
+
+   Like Lucene's SearcherLifetimeManager, but also for searchers over
+   several readers. Searchers over the same segments share one entry,
+   so searches between index refreshes pin only one view. A searcher
+   is given up once it has not been used for the given time, or when
+   more than the maximum number are kept, the least recently used
+   one first. Cursors of a searcher given up have expired.
+*/
+public class CursorSearchers implements Closeable {
+    private static class Entry {
+        final long token;
+        final IndexSearcher searcher;
+        final List<Object> view;
+        long lastUsed;
+
+        Entry(long token, IndexSearcher searcher, List<Object> view) {
+            this.token = token;
+            this.searcher = searcher;
+            this.view = view;
+            this.lastUsed = System.currentTimeMillis();
+        }
+    }
+
+    private final long maxAgeMs;
+    private final int maxSearchers;
+    private long lastToken = 0;
+    private final Map<Long, Entry> byToken = new TreeMap<Long, Entry>();
+    private final Map<List<Object>, Entry> byView =
+        new HashMap<List<Object>, Entry>();
+
+    /**
+       @param maxAgeMs Time in milliseconds to keep unused searchers
+       @param maxSearchers Maximum number of searchers to keep
+    */
+    public CursorSearchers(long maxAgeMs, int maxSearchers) {
+        this.maxAgeMs = maxAgeMs;
+        this.maxSearchers = Math.max(1, maxSearchers);
+    }
+
+    /**
+       The segments seen by the given reader, equal for readers with
+       the same documents and deletions in the same order.
+    */
+    private static List<Object> view(IndexReader reader) {
+        List<Object> view = new ArrayList<Object>();
+        for (LeafReaderContext leaf : reader.leaves())
+            view.add(leaf.reader().getCombinedCoreAndDeletesKey());
+        return view;
+    }
+
+    /**
+       Keep the given searcher for cursors, the caller keeps its own
+       reference.
+
+       @return Token for getting the searcher with acquire()
+    */
+    public synchronized long record(IndexSearcher searcher)
+        throws IOException
+    {
+        prune();
+
+        IndexReader reader = searcher.getIndexReader();
+        List<Object> view = view(reader);
+        Entry entry = byView.get(view);
+        if (entry == null) {
+            while (byToken.size() >= maxSearchers)
+                remove(leastRecentlyUsed());
+            reader.incRef();
+            entry = new Entry(++lastToken, searcher, view);
+            byToken.put(entry.token, entry);
+            byView.put(view, entry);
+        }
+        entry.lastUsed = System.currentTimeMillis();
+        return entry.token;
+    }
+
+    private Entry leastRecentlyUsed() {
+        Entry oldest = null;
+        for (Entry entry : byToken.values())
+            if (oldest == null || entry.lastUsed < oldest.lastUsed)
+                oldest = entry;
+        return oldest;
+    }
+
+    private void remove(Entry entry) throws IOException {
+        byToken.remove(entry.token);
+        byView.remove(entry.view);
+        entry.searcher.getIndexReader().decRef();
+    }
+
+    /**
+       Acquire the searcher of the given token, or null if it has
+       expired. Give it back with release().
+    */
+    public synchronized IndexSearcher acquire(long token) throws IOException {
+        prune();
+
+        Entry entry = byToken.get(token);
+        if (entry == null)
+            return null;
+        entry.searcher.getIndexReader().incRef();
+        entry.lastUsed = System.currentTimeMillis();
+        return entry.searcher;
+    }
+
+    /** Give back a searcher acquired with acquire(). */
+    public void release(IndexSearcher searcher) throws IOException {
+        searcher.getIndexReader().decRef();
+    }
+
+    /** Whether the searcher of the given token is still kept. */
+    public synchronized boolean isLive(long token) {
+        Entry entry = byToken.get(token);
+        return entry != null &&
+            System.currentTimeMillis() - entry.lastUsed < maxAgeMs;
+    }
+
+    /** Number of searchers currently kept. */
+    public synchronized int size() {
+        return byToken.size();
+    }
+
+    /** Give up the searchers not used for the maximum time. */
+    public synchronized void prune() throws IOException {
+        long now = System.currentTimeMillis();
+        Iterator<Entry> it = byToken.values().iterator();
+        while (it.hasNext()) {
+            Entry entry = it.next();
+            if (now - entry.lastUsed >= maxAgeMs) {
+                it.remove();
+                byView.remove(entry.view);
+                entry.searcher.getIndexReader().decRef();
+            }
+        }
+    }
+
+    /** Give up all searchers. */
+    @Override
+    public synchronized void close() throws IOException {
+        for (Entry entry : byToken.values())
+            entry.searcher.getIndexReader().decRef();
+        byToken.clear();
+        byView.clear();
+    }
+}
@@ -0,0 +1,197 @@
+/*
+  Copyright (c) 2015-2016 University of Helsinki
+
+  Permission is hereby granted, free of charge, to any person
+  obtaining a copy of this software and associated documentation files
+  (the "Software"), to deal in the Software without restriction,
+  including without limitation the rights to use, copy, modify, merge,
+  publish, distribute, sublicense, and/or sell copies of the Software,
+  and to permit persons to whom the Software is furnished to do so,
+  subject to the following conditions:
+
+  The above copyright notice and this permission notice shall be
+  included in all copies or substantial portions of the Software.
+
+  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+  EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+  MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+  NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+  BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+  ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+  CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+  SOFTWARE.
+*/
+
+package fi.hiit.dime.search;
+
+import fi.hiit.dime.database.IndexOutboxEntry;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.NumericDocValues;
+import org.apache.lucene.index.ReaderUtil;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.InPlaceMergeSorter;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+   Numeric keys of indexed objects: the kind of object in the top
+   byte and its database id in the rest, stored as doc values.
+
+   For each index segment a table of keys sorted by value is kept,
+   mapping keys to doc ids with a binary search over primitive
+   arrays, without queries or string ids. Segments never change
+   apart from deletions, which are checked at lookup, so the tables
+   are built once and dropped when the segment is closed.
+*/
+public class DocKeys {
+    public static final String keyField = "key";
+
+    public static final byte ELEM = 1;
+    public static final byte EVENT = 2;
+
+    private static final int kindShift = 56;
+    private static final long idMask = (1L << kindShift) - 1;
+
+    private final Map<Object, SegmentKeys> segments =
+        new ConcurrentHashMap<Object, SegmentKeys>();
+
+    private final LeafReader.CoreClosedListener closedListener =
+        new LeafReader.CoreClosedListener() {
+            public void onClose(Object coreKey) {
+                segments.remove(coreKey);
+            }
+        };
+
+    public static long key(byte kind, long id) {
+        return ((long)kind << kindShift) | (id & idMask);
+    }
+
+    /** Key for the given outbox kind and object id. */
+    public static long key(String kind, long id) {
+        return key(IndexOutboxEntry.EVENT.equals(kind) ? EVENT : ELEM, id);
+    }
+
+    public static byte kindOf(long key) {
+        return (byte)(key >>> kindShift);
+    }
+
+    public static long idOf(long key) {
+        return key & idMask;
+    }
+
+    /**
+       Find the live document with the given key.
+
+       @return doc id in the given reader, or -1 if not found
+    */
+    public int docId(IndexReader reader, long key) throws IOException {
+        for (LeafReaderContext ctx : reader.leaves()) {
+            LeafReader leaf = ctx.reader();
+            int doc = segmentKeys(leaf).find(key, leaf.getLiveDocs());
+            if (doc >= 0)
+                return ctx.docBase + doc;
+        }
+        return -1;
+    }
+
+    /**
+       Read the keys of the given documents from the doc values.
+
+       @return keys in the same order, 0 for documents without one
+    */
+    public static long[] keys(IndexReader reader, int[] docIds)
+        throws IOException
+    {
+        List<LeafReaderContext> leaves = reader.leaves();
+        long[] keys = new long[docIds.length];
+        for (int i=0; i<docIds.length; i++) {
+            LeafReaderContext ctx =
+                leaves.get(ReaderUtil.subIndex(docIds[i], leaves));
+            NumericDocValues values =
+                ctx.reader().getNumericDocValues(keyField);
+            if (values != null)
+                keys[i] = values.get(docIds[i] - ctx.docBase);
+        }
+        return keys;
+    }
+
+    private SegmentKeys segmentKeys(LeafReader leaf) throws IOException {
+        Object coreKey = leaf.getCoreCacheKey();
+        SegmentKeys keys = segments.get(coreKey);
+        if (keys == null) {
+            keys = new SegmentKeys(leaf);
+            if (segments.putIfAbsent(coreKey, keys) == null)
+                leaf.addCoreClosedListener(closedListener);
+        }
+        return keys;
+    }
+
+    /**
+       Keys of one segment in ascending order, with the doc ids in a
+       parallel array. The same key may appear for several documents
+       when an object has been updated, all but one of them deleted.
+    */
+    private static class SegmentKeys {
+        private final long[] keys;
+        private final int[] docs;
+
+        SegmentKeys(LeafReader leaf) throws IOException {
+            NumericDocValues values = leaf.getNumericDocValues(keyField);
+            int maxDoc = values != null ? leaf.maxDoc() : 0;
+
+            long[] keys = new long[maxDoc];
+            int[] docs = new int[maxDoc];
+            int count = 0;
+            for (int doc=0; doc<maxDoc; doc++) {
+                long key = values.get(doc);
+                if (key != 0) {
+                    keys[count] = key;
+                    docs[count] = doc;
+                    count += 1;
+                }
+            }
+
+            final long[] k = keys;
+            final int[] d = docs;
+            new InPlaceMergeSorter() {
+                @Override
+                protected int compare(int i, int j) {
+                    return Long.compare(k[i], k[j]);
+                }
+
+                @Override
+                protected void swap(int i, int j) {
+                    long key = k[i]; k[i] = k[j]; k[j] = key;
+                    int doc = d[i]; d[i] = d[j]; d[j] = doc;
+                }
+            }.sort(0, count);
+
+            this.keys = count < maxDoc ? Arrays.copyOf(keys, count) : keys;
+            this.docs = count < maxDoc ? Arrays.copyOf(docs, count) : docs;
+        }
+
+        int find(long key, Bits liveDocs) {
+            int lo = 0, hi = keys.length - 1;
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                if (keys[mid] < key)
+                    lo = mid + 1;
+                else
+                    hi = mid - 1;
+            }
+
+            // lo is now the first entry with the key, if any
+            for (int i=lo; i<keys.length && keys[i] == key; i++)
+                if (liveDocs == null || liveDocs.get(docs[i]))
+                    return docs[i];
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,285 @@
+/*
+  Copyright (c) 2015-2016 University of Helsinki
+
+  Permission is hereby granted, free of charge, to any person
+  obtaining a copy of this software and associated documentation files
+  (the "Software"), to deal in the Software without restriction,
+  including without limitation the rights to use, copy, modify, merge,
+  publish, distribute, sublicense, and/or sell copies of the Software,
+  and to permit persons to whom the Software is furnished to do so,
+  subject to the following conditions:
+
+  The above copyright notice and this permission notice shall be
+  included in all copies or substantial portions of the Software.
+
+  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+  EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+  MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+  NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+  BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+  ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+  CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+  SOFTWARE.
+*/
+
+package fi.hiit.dime.search;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.SortedSetDocValuesField;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.DocValues;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.SortedSetDocValues;
+import org.apache.lucene.search.Collector;
+import org.apache.lucene.search.CollectorManager;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.LeafCollector;
+import org.apache.lucene.search.MultiCollector;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.SimpleCollector;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.search.TopScoreDocCollector;
+import org.apache.lucene.util.BytesRef;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+   Facet counts of search results, i.e. the number of matching
+   documents with each value of a field.
+
+   Each facet dimension is indexed both as a string field, for
+   drill-down filtering with a TermQuery, and as sorted set doc
+   values, which are counted by ordinal while the top hits are
+   collected.
+*/
+public class Facets {
+    public static final String CLASS = "@type";
+    public static final String TYPE = "type";
+    public static final String ACTOR = "actor";
+    public static final String TAG = "tag";
+    public static final String MONTH = "month";
+
+    /** All facet dimensions. */
+    public static final List<String> DIMENSIONS =
+        Collections.unmodifiableList(Arrays.asList(CLASS, TYPE, ACTOR,
+                                                   TAG, MONTH));
+
+    /** Top hits and facet counts of a search. */
+    public static class Result {
+        public TopDocs topDocs;
+        public Map<String, Map<String, Long>> counts;
+    }
+
+    /**
+       Add a facet value to the document, as doc values only if the
+       field is already indexed for filtering.
+    */
+    public static void addFacet(Document doc, String dimension, String value,
+                                boolean indexed)
+    {
+        if (value == null || value.isEmpty())
+            return;
+        if (!indexed)
+            doc.add(new StringField(dimension, value, Field.Store.NO));
+        doc.add(new SortedSetDocValuesField(dimension, new BytesRef(value)));
+    }
+
+    /**
+       Search the top hits and count the facet values of all matching
+       documents in one pass. The leaves are searched concurrently if
+       the searcher has an executor.
+
+       @param after Hit after which to start, or null from the start
+       @param numHits Number of top hits
+       @param dimensions Facet dimensions to count
+       @param topValues Number of values to return per dimension, the
+       most common first
+    */
+    public static Result search(IndexSearcher searcher, Query query,
+                                final ScoreDoc after, int numHits,
+                                final List<String> dimensions,
+                                final int topValues)
+        throws IOException
+    {
+        final int cappedHits =
+            Math.min(numHits, Math.max(1, searcher.getIndexReader().maxDoc()));
+
+        return searcher.search(query, new CollectorManager<FacetAndTopCollector, Result>() {
+                public FacetAndTopCollector newCollector() {
+                    return new FacetAndTopCollector(after, cappedHits,
+                                                    dimensions);
+                }
+
+                public Result reduce(Collection<FacetAndTopCollector> collectors)
+                    throws IOException
+                {
+                    Result result = new Result();
+                    List<TopDocs> topDocs = new ArrayList<TopDocs>();
+                    Map<String, Map<String, Long>> counts =
+                        new HashMap<String, Map<String, Long>>();
+
+                    for (FacetAndTopCollector c : collectors) {
+                        if (c.top != null)
+                            topDocs.add(c.top.topDocs());
+                        c.facets.addCounts(counts);
+                    }
+
+                    result.topDocs = topDocs.isEmpty() ?
+                        new TopDocs(0, new ScoreDoc[0], Float.NaN) :
+                        TopDocs.merge(cappedHits,
+                                      topDocs.toArray(new TopDocs[topDocs.size()]));
+                    result.counts = top(counts, dimensions, topValues);
+                    return result;
+                }
+            });
+    }
+
+    private static Map<String, Map<String, Long>>
+        top(Map<String, Map<String, Long>> counts, List<String> dimensions,
+            int topValues)
+    {
+        Map<String, Map<String, Long>> res =
+            new LinkedHashMap<String, Map<String, Long>>();
+        for (String dim : dimensions) {
+            List<Map.Entry<String, Long>> values =
+                new ArrayList<Map.Entry<String, Long>>();
+            if (counts.containsKey(dim))
+                values.addAll(counts.get(dim).entrySet());
+
+            // most common first, then alphabetically
+            Collections.sort(values, new Comparator<Map.Entry<String, Long>>() {
+                    public int compare(Map.Entry<String, Long> a,
+                                       Map.Entry<String, Long> b) {
+                        int c = b.getValue().compareTo(a.getValue());
+                        return c != 0 ? c : a.getKey().compareTo(b.getKey());
+                    }
+                });
+
+            Map<String, Long> top = new LinkedHashMap<String, Long>();
+            for (int i=0; i<values.size() && i<topValues; i++)
+                top.put(values.get(i).getKey(), values.get(i).getValue());
+            res.put(dim, top);
+        }
+        return res;
+    }
+
+    /** Collects the top hits and facet counts of one slice. */
+    private static class FacetAndTopCollector implements Collector {
+        final TopScoreDocCollector top;
+        final FacetCollector facets;
+        private final Collector both;
+
+        FacetAndTopCollector(ScoreDoc after, int numHits,
+                             List<String> dimensions) {
+            top = numHits > 0 ? TopScoreDocCollector.create(numHits, after) : null;
+            facets = new FacetCollector(dimensions);
+            both = MultiCollector.wrap(top, facets);
+        }
+
+        @Override
+        public LeafCollector getLeafCollector(LeafReaderContext context)
+            throws IOException
+        {
+            return both.getLeafCollector(context);
+        }
+
+        @Override
+        public boolean needsScores() {
+            return both.needsScores();
+        }
+    }
+
+    /**
+       Counts facet values by ordinal within each segment, and by
+       value once the segment is done.
+    */
+    private static class FacetCollector extends SimpleCollector {
+        private final String[] dimensions;
+        private final List<Map<String, Long>> counts =
+            new ArrayList<Map<String, Long>>();
+
+        private SortedSetDocValues[] values;
+        private int[][] ordCounts;
+
+        FacetCollector(List<String> dimensions) {
+            this.dimensions = dimensions.toArray(new String[dimensions.size()]);
+            for (int i=0; i<this.dimensions.length; i++)
+                counts.add(new HashMap<String, Long>());
+        }
+
+        @Override
+        protected void doSetNextReader(LeafReaderContext context)
+            throws IOException
+        {
+            finishSegment();
+            values = new SortedSetDocValues[dimensions.length];
+            ordCounts = new int[dimensions.length][];
+            for (int i=0; i<dimensions.length; i++) {
+                values[i] = DocValues.getSortedSet(context.reader(),
+                                                   dimensions[i]);
+                ordCounts[i] = new int[(int)values[i].getValueCount()];
+            }
+        }
+
+        @Override
+        public void collect(int doc) {
+            for (int i=0; i<dimensions.length; i++) {
+                values[i].setDocument(doc);
+                long ord;
+                while ((ord = values[i].nextOrd()) !=
+                       SortedSetDocValues.NO_MORE_ORDS)
+                    ordCounts[i][(int)ord]++;
+            }
+        }
+
+        @Override
+        public boolean needsScores() {
+            return false;
+        }
+
+        private void finishSegment() {
+            if (values == null)
+                return;
+            for (int i=0; i<dimensions.length; i++) {
+                Map<String, Long> dimCounts = counts.get(i);
+                for (int ord=0; ord<ordCounts[i].length; ord++) {
+                    if (ordCounts[i][ord] == 0)
+                        continue;
+                    String value = values[i].lookupOrd(ord).utf8ToString();
+                    Long old = dimCounts.get(value);
+                    dimCounts.put(value, (old != null ? old : 0) +
+                                  ordCounts[i][ord]);
+                }
+            }
+            values = null;
+        }
+
+        /** Add the counts of this collector to the given ones. */
+        void addCounts(Map<String, Map<String, Long>> total) {
+            finishSegment();
+            for (int i=0; i<dimensions.length; i++) {
+                Map<String, Long> dimTotal = total.get(dimensions[i]);
+                if (dimTotal == null) {
+                    dimTotal = new HashMap<String, Long>();
+                    total.put(dimensions[i], dimTotal);
+                }
+                for (Map.Entry<String, Long> e : counts.get(i).entrySet()) {
+                    Long old = dimTotal.get(e.getKey());
+                    dimTotal.put(e.getKey(), (old != null ? old : 0) +
+                                 e.getValue());
+                }
+            }
+        }
+    }
+}
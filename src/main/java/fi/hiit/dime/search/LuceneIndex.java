@@ -0,0 +1,351 @@
+/*
+  Copyright (c) 2015-2016 University of Helsinki
+
+  Permission is hereby granted, free of charge, to any person
+  obtaining a copy of this software and associated documentation files
+  (the "Software"), to deal in the Software without restriction,
+  including without limitation the rights to use, copy, modify, merge,
+  publish, distribute, sublicense, and/or sell copies of the Software,
+  and to permit persons to whom the Software is furnished to do so,
+  subject to the following conditions:
+
+  The above copyright notice and this permission notice shall be
+  included in all copies or substantial portions of the Software.
+
+  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+  EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+  MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+  NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+  BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+  ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+  CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+  SOFTWARE.
+*/
+
+package fi.hiit.dime.search;
+
+import fi.hiit.dime.DiMeProperties;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.codecs.lucene50.Lucene50StoredFieldsFormat.Mode;
+import org.apache.lucene.codecs.lucene53.Lucene53Codec;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig.OpenMode;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.IndexableField;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TrackingIndexWriter;
+import org.apache.lucene.search.ControlledRealTimeReopenThread;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.SearcherManager;
+import org.apache.lucene.store.FSDirectory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+   A single Lucene index directory together with its long-lived
+   IndexWriter and the near-real-time searchers opened from it.
+
+   Changes become visible to searches once the background reopen
+   thread has refreshed the searcher, while commits to disk are
+   governed by a separate commit policy (see maybeCommit()).
+
+   Lucene allows only one writer per index directory, so instances
+   are shared within the process and reference counted: get one with
+   open() and give it back with close().
+*/
+public class LuceneIndex implements Closeable {
+    private static final Logger LOG =
+        LoggerFactory.getLogger(LuceneIndex.class);
+
+    // Bounds on how stale the near-real-time searcher may get, in
+    // seconds. Anyone waiting for a specific generation gets the
+    // lower bound.
+    private static final double maxStaleSec = 1.0;
+    private static final double minStaleSec = 0.025;
+
+    private static final Map<Path, LuceneIndex> openIndexes =
+        new HashMap<Path, LuceneIndex>();
+
+    private final Path path;
+    private final FSDirectory fsDir;
+    private final IndexWriter writer;
+    private final TrackingIndexWriter trackingWriter;
+    private final SearcherManager searcherManager;
+    private final ControlledRealTimeReopenThread<IndexSearcher> reopenThread;
+
+    private final long commitIntervalMs;
+    private final long commitMaxDocs;
+
+    private final AtomicLong uncommittedCount = new AtomicLong(0);
+    private long lastCommitTime;
+    private int refCount = 1;
+    private boolean closed = false;
+
+    /**
+       Open (or create) the index at the given path, or return the
+       already open instance for that path.
+
+       @param path Path to the index directory
+       @param analyzer Analyzer used for indexing
+       @param config DiMe configuration with the flush and commit settings
+    */
+    public static LuceneIndex open(Path path, Analyzer analyzer,
+                                   DiMeProperties config)
+        throws IOException
+    {
+        Path key = path.toAbsolutePath().normalize();
+        synchronized (openIndexes) {
+            LuceneIndex index = openIndexes.get(key);
+            if (index != null) {
+                synchronized (index) {
+                    index.refCount++;
+                }
+            } else {
+                index = new LuceneIndex(key, analyzer, config);
+                openIndexes.put(key, index);
+            }
+            return index;
+        }
+    }
+
+    private LuceneIndex(Path path, Analyzer analyzer, DiMeProperties config)
+        throws IOException
+    {
+        this.path = path;
+        fsDir = FSDirectory.open(path);
+
+        IndexWriterConfig iwc = new IndexWriterConfig(analyzer);
+        iwc.setOpenMode(OpenMode.CREATE_OR_APPEND);
+
+        // Flush policy: segments are flushed when either threshold
+        // is reached, a larger RAM buffer gives fewer and larger
+        // segments.
+        iwc.setRAMBufferSizeMB(config.getLuceneRamBufferSizeMB());
+        if (config.getLuceneMaxBufferedDocs() > 0)
+            iwc.setMaxBufferedDocs(config.getLuceneMaxBufferedDocs());
+
+        // Smaller stored fields at the cost of slower retrieval
+        if (config.getLuceneCompressStoredFields())
+            iwc.setCodec(new Lucene53Codec(Mode.BEST_COMPRESSION));
+
+        writer = new IndexWriter(fsDir, iwc);
+        trackingWriter = new TrackingIndexWriter(writer);
+
+        // Make sure there is a commit to open readers on, also for a
+        // newly created index.
+        writer.commit();
+        lastCommitTime = System.currentTimeMillis();
+
+        commitIntervalMs = config.getLuceneCommitInterval()*1000L;
+        commitMaxDocs = config.getLuceneCommitMaxDocs();
+
+        searcherManager = new SearcherManager(writer, true, null);
+
+        reopenThread = new ControlledRealTimeReopenThread<IndexSearcher>
+            (trackingWriter, searcherManager, maxStaleSec, minStaleSec);
+        reopenThread.setName("Lucene NRT reopen " + path.getFileName());
+        reopenThread.setDaemon(true);
+        reopenThread.start();
+    }
+
+    /** Path to the index directory. */
+    public Path getPath() { return path; }
+
+    /**
+       Add or replace the document identified by the given term.
+
+       @return Indexing generation, see waitForGeneration()
+    */
+    public long updateDocument(Term idTerm, Iterable<? extends IndexableField> doc)
+        throws IOException
+    {
+        uncommittedCount.incrementAndGet();
+        return trackingWriter.updateDocument(idTerm, doc);
+    }
+
+    /**
+       Delete all documents containing the given term.
+
+       @return Indexing generation, see waitForGeneration()
+    */
+    public long deleteDocuments(Term term) throws IOException {
+        uncommittedCount.incrementAndGet();
+        return trackingWriter.deleteDocuments(term);
+    }
+
+    /**
+       Delete all documents matching the given query.
+
+       @return Indexing generation, see waitForGeneration()
+    */
+    public long deleteDocuments(Query query) throws IOException {
+        uncommittedCount.incrementAndGet();
+        return trackingWriter.deleteDocuments(query);
+    }
+
+    /** Current indexing generation. */
+    public long getGeneration() {
+        return trackingWriter.getGeneration();
+    }
+
+    /**
+       Block until the searchers reflect all changes up to the given
+       generation.
+    */
+    public void waitForGeneration(long generation) {
+        try {
+            reopenThread.waitForGeneration(generation);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+       Whether newly acquired searchers reflect all changes up to the
+       given generation. Does not block, but asks for a reopen soon
+       if they do not.
+    */
+    public boolean isSearchable(long generation) {
+        try {
+            return reopenThread.waitForGeneration(generation, 0);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+       Acquire a near-real-time searcher. Always give it back with
+       release().
+    */
+    public IndexSearcher acquire() throws IOException {
+        return searcherManager.acquire();
+    }
+
+    /** Give back a searcher acquired with acquire(). */
+    public void release(IndexSearcher searcher) throws IOException {
+        searcherManager.release(searcher);
+    }
+
+    /**
+       User data stored with the last commit, or set to be stored
+       with the next one.
+    */
+    public Map<String, String> getCommitData() {
+        return new HashMap<String, String>(writer.getCommitData());
+    }
+
+    /** Set user data to be stored with the next commit. */
+    public synchronized void setCommitData(Map<String, String> commitData) {
+        writer.setCommitData(commitData);
+    }
+
+    /**
+       Number of documents in the index, including those not yet
+       committed. Deletions are counted once they are flushed.
+    */
+    public int numDocs() {
+        return writer.numDocs();
+    }
+
+    /** Number of changes not yet committed to disk. */
+    public long getUncommittedCount() {
+        return uncommittedCount.get();
+    }
+
+    /**
+       Commit if the commit policy says so, i.e., if enough changes
+       have accumulated or enough time has passed since the last
+       commit with changes pending.
+
+       @return True if a commit was made
+    */
+    public synchronized boolean maybeCommit() throws IOException {
+        long pending = uncommittedCount.get();
+        if (closed || pending == 0)
+            return false;
+
+        long elapsed = System.currentTimeMillis() - lastCommitTime;
+        if (pending >= commitMaxDocs || elapsed >= commitIntervalMs) {
+            commit();
+            return true;
+        }
+        return false;
+    }
+
+    /** Commit all pending changes to disk. */
+    public synchronized void commit() throws IOException {
+        if (closed)
+            return;
+
+        long pending = uncommittedCount.getAndSet(0);
+        writer.commit();
+        lastCommitTime = System.currentTimeMillis();
+        LOG.debug("Committed {} changes to Lucene index {}.", pending, path);
+    }
+
+    /**
+       Give back the index, when the last user is gone pending changes
+       are committed and the index closed.
+    */
+    @Override
+    public void close() throws IOException {
+        synchronized (openIndexes) {
+            synchronized (this) {
+                if (closed || --refCount > 0)
+                    return;
+                openIndexes.remove(path);
+                doClose();
+            }
+        }
+    }
+
+    /**
+       Remove an index directory that is no longer open, with all
+       its files and sub directories.
+    */
+    public static void deleteDirectory(Path path) throws IOException {
+        Files.walkFileTree(path, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult visitFile(Path file,
+                                                 BasicFileAttributes attrs)
+                    throws IOException
+                {
+                    Files.delete(file);
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult postVisitDirectory(Path dir,
+                                                          IOException e)
+                    throws IOException
+                {
+                    Files.delete(dir);
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+    }
+
+    private void doClose() throws IOException {
+        reopenThread.close();
+        searcherManager.close();
+        commit();
+        closed = true;
+        writer.close();
+        fsDir.close();
+        LOG.info("Closed Lucene index {}.", path);
+    }
+}
@@ -0,0 +1,738 @@
+/*
+  Copyright (c) 2015-2016 University of Helsinki
+
+  Permission is hereby granted, free of charge, to any person
+  obtaining a copy of this software and associated documentation files
+  (the "Software"), to deal in the Software without restriction,
+  including without limitation the rights to use, copy, modify, merge,
+  publish, distribute, sublicense, and/or sell copies of the Software,
+  and to permit persons to whom the Software is furnished to do so,
+  subject to the following conditions:
+
+  The above copyright notice and this permission notice shall be
+  included in all copies or substantial portions of the Software.
+
+  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+  EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+  MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+  NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+  BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+  ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+  CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+  SOFTWARE.
+*/
+
+package fi.hiit.dime.search;
+
+import fi.hiit.dime.DiMeProperties;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.MultiReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.util.StringHelper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+   The search index of one version, either a single Lucene index or
+   split into partitions: one Lucene index per user, or a fixed
+   number of shards each with its own writer.
+
+   The main index at the index path holds the commit data, and in
+   the default layout also all documents. Partitions live in sub
+   directories of it. User partitions are opened when first needed,
+   so searches of one user only touch that user's data and term
+   statistics, and closed again when they have not been used for a
+   while. Searches of a user without a partition get an empty
+   reader, only adding documents creates one. Shards are hashed by
+   user or by object id; searches over several shards run
+   concurrently on the search executor, one task per segment, and
+   the top hits are merged.
+
+   Partitions are committed before the main index, so the commit
+   data never claims changes that are not on disk.
+*/
+public class PartitionedIndex implements Closeable {
+    private static final Logger LOG =
+        LoggerFactory.getLogger(PartitionedIndex.class);
+
+    public static final String NONE = "none";
+    public static final String USER = "user";
+    public static final String SHARDS = "shards";
+
+    public static final String SHARD_BY_USER = "user";
+    public static final String SHARD_BY_ID = "id";
+
+    private static final String userDir = "users";
+    private static final String shardDir = "shards";
+
+    private final Path path;
+    private final Analyzer analyzer;
+    private final DiMeProperties config;
+    private final String partitioning;
+    private final LuceneIndex main;
+
+    private final int numShards;
+    private final boolean shardById;
+    private final ExecutorService searchExecutor;
+
+    // User partitions by user id, or shards by number
+    private final Map<Long, LuceneIndex> partitions =
+        new ConcurrentHashMap<Long, LuceneIndex>();
+
+    // Held while user partitions are used, and exclusively while one
+    // is closed or removed, so that nobody writes to or opens a
+    // partition as it goes away
+    private final ReentrantReadWriteLock partitionLock =
+        new ReentrantReadWriteLock();
+
+    // Last use of each open user partition in milliseconds
+    private final Map<Long, Long> lastUse = new ConcurrentHashMap<Long, Long>();
+    private final long partitionIdleMs;
+
+    // Searcher over all partitions, reused until one of them changes
+    private IndexSearcher composite = null;
+    private IndexReader[] compositeReaders = null;
+
+    // Counts changes to any index, so that generations keep growing
+    // when the index is replaced
+    private static final AtomicLong changeCount = new AtomicLong();
+
+    // Last change of each user's documents, and of documents of
+    // unknown users
+    private final Map<Long, Change> userChanges =
+        new ConcurrentHashMap<Long, Change>();
+    private volatile Change anyUserChange = new Change(null);
+
+    private static class Change {
+        final long count = changeCount.incrementAndGet();
+        final List<LuceneIndex> indexes;
+        final long[] generations;
+
+        Change(List<LuceneIndex> indexes) {
+            this.indexes = indexes;
+            this.generations = new long[indexes != null ? indexes.size() : 0];
+            for (int i=0; i<generations.length; i++)
+                generations[i] = indexes.get(i).getGeneration();
+        }
+
+        boolean isSearchable() {
+            for (int i=0; i<generations.length; i++)
+                if (!indexes.get(i).isSearchable(generations[i]))
+                    return false;
+            return true;
+        }
+    }
+
+    private final long commitIntervalMs;
+    private final long commitMaxDocs;
+    private long lastCommitTime;
+
+    /**
+       Open (or create) the index at the given path, with the
+       partitioning given in the configuration.
+
+       @param searchExecutor Executor for searching several
+       partitions concurrently
+    */
+    public static PartitionedIndex open(Path path, Analyzer analyzer,
+                                        DiMeProperties config,
+                                        ExecutorService searchExecutor)
+        throws IOException
+    {
+        return new PartitionedIndex(path, analyzer, config, searchExecutor);
+    }
+
+    private PartitionedIndex(Path path, Analyzer analyzer,
+                             DiMeProperties config,
+                             ExecutorService searchExecutor)
+        throws IOException
+    {
+        this.analyzer = analyzer;
+        this.config = config;
+        this.searchExecutor = searchExecutor;
+        this.partitioning = partitioning(config);
+        this.main = LuceneIndex.open(path, analyzer, config);
+        this.path = main.getPath();
+
+        numShards = Math.max(config.getLuceneShards(), 1);
+        shardById = config.getLuceneShardKey().equals(SHARD_BY_ID);
+        if (partitioning == SHARDS) {
+            for (long i=0; i<numShards; i++)
+                partitions.put(i, LuceneIndex.open(path.resolve(shardDir)
+                                                   .resolve(Long.toString(i)),
+                                                   analyzer, config));
+        }
+
+        commitIntervalMs = config.getLuceneCommitInterval()*1000L;
+        commitMaxDocs = config.getLuceneCommitMaxDocs();
+        lastCommitTime = System.currentTimeMillis();
+        partitionIdleMs = config.getLuceneUserPartitionIdleTime()*1000L;
+    }
+
+    /**
+       Partitioning given in the configuration, the default if it
+       is not known.
+    */
+    public static String partitioning(DiMeProperties config) {
+        String p = config.getLucenePartitioning();
+        if (p.equals(USER))
+            return USER;
+        if (p.equals(SHARDS))
+            return SHARDS;
+        if (!p.equals(NONE))
+            LOG.error("Unknown Lucene index partitioning given in " +
+                      "config ({})!", p);
+        return NONE;
+    }
+
+    /**
+       Name of the layout given in the configuration, null for the
+       default single index. Indexes with different layouts are not
+       compatible.
+    */
+    public static String layout(DiMeProperties config) {
+        String p = partitioning(config);
+        if (p == NONE)
+            return null;
+        if (p == SHARDS)
+            return Math.max(config.getLuceneShards(), 1) + "shards_by_" +
+                (config.getLuceneShardKey().equals(SHARD_BY_ID) ?
+                 SHARD_BY_ID : SHARD_BY_USER);
+        return p;
+    }
+
+    /** Path to the main index directory. */
+    public Path getPath() { return path; }
+
+    /**
+       The Lucene index holding the documents of the given user, in
+       the default or per-user layout. Call with partitionLock held.
+
+       @param create Whether to create the partition if the user has
+       none yet
+       @return the index, or null if the user has no partition and
+       create is false
+    */
+    private LuceneIndex partition(Long userId, boolean create)
+        throws IOException
+    {
+        if (partitioning == NONE)
+            return main;
+
+        synchronized (partitions) {
+            LuceneIndex index = partitions.get(userId);
+            if (index == null) {
+                if (!create && !Files.isDirectory(userPath(userId)))
+                    return null;
+                index = LuceneIndex.open(userPath(userId), analyzer, config);
+                partitions.put(userId, index);
+            }
+            lastUse.put(userId, System.currentTimeMillis());
+            return index;
+        }
+    }
+
+    private Path userPath(Long userId) {
+        return path.resolve(userDir).resolve(userId.toString());
+    }
+
+    /**
+       The shard of the given object, or of all objects of the user
+       if the id term is null. Null if it could be in any shard.
+    */
+    private LuceneIndex shard(Long userId, Term idTerm) {
+        long hash;
+        if (shardById && idTerm != null)
+            hash = StringHelper.murmurhash3_x86_32(idTerm.bytes(), 0);
+        else if (!shardById && userId != null)
+            hash = userId;
+        else
+            return null;
+        return partitions.get((hash & Long.MAX_VALUE) % numShards);
+    }
+
+    /**
+       The Lucene indexes that may hold the given object, or the
+       objects of the given user if the id term is null. Call with
+       partitionLock held.
+
+       @param create Whether to create the partition of the user if
+       it has none yet, otherwise no indexes are returned for such a
+       user
+    */
+    private List<LuceneIndex> partitionsFor(Long userId, Term idTerm,
+                                            boolean create)
+        throws IOException
+    {
+        LuceneIndex index = null;
+        if (partitioning == NONE) {
+            index = main;
+        } else if (partitioning == SHARDS) {
+            index = shard(userId, idTerm);
+        } else if (userId != null) {
+            index = partition(userId, create);
+            if (index == null)
+                return Collections.emptyList();
+        }
+
+        if (index != null)
+            return Collections.singletonList(index);
+        return allPartitions();
+    }
+
+    /**
+       All Lucene indexes holding documents, also opening the user
+       partitions not used yet. Call with partitionLock held.
+    */
+    private List<LuceneIndex> allPartitions() throws IOException {
+        List<LuceneIndex> all = new ArrayList<LuceneIndex>();
+        if (partitioning == NONE) {
+            all.add(main);
+            return all;
+        }
+
+        if (partitioning == USER)
+            for (Long userId : userPartitionIds())
+                partition(userId, false);
+
+        synchronized (partitions) {
+            all.addAll(new TreeMap<Long, LuceneIndex>(partitions).values());
+        }
+        return all;
+    }
+
+    /**
+       Ids of the users with a partition on disk in the per-user
+       layout, whether open or not.
+    */
+    private List<Long> userPartitionIds() throws IOException {
+        List<Long> ids = new ArrayList<Long>();
+        Path users = path.resolve(userDir);
+        if (!Files.isDirectory(users))
+            return ids;
+
+        try (DirectoryStream<Path> dirs = Files.newDirectoryStream(users)) {
+            for (Path dir : dirs) {
+                try {
+                    ids.add(Long.valueOf(dir.getFileName().toString()));
+                } catch (NumberFormatException e) {
+                    LOG.warn("Unexpected directory in index: {}", dir);
+                }
+            }
+        }
+        Collections.sort(ids);
+        return ids;
+    }
+
+    /** Open partitions only, with no changes pending elsewhere. */
+    private List<LuceneIndex> openPartitions() {
+        List<LuceneIndex> open = new ArrayList<LuceneIndex>();
+        if (partitioning == NONE) {
+            open.add(main);
+        } else {
+            synchronized (partitions) {
+                open.addAll(partitions.values());
+            }
+        }
+        return open;
+    }
+
+    /**
+       Record a change to the documents of the given user, or of any
+       user if null, made to the given indexes.
+    */
+    private void changed(Long userId, List<LuceneIndex> indexes) {
+        Change change = new Change(indexes);
+        if (userId == null) {
+            anyUserChange = change;
+            return;
+        }
+        // Changes of the same user may be recorded concurrently
+        synchronized (userChanges) {
+            Change last = userChanges.get(userId);
+            if (last == null || last.count < change.count)
+                userChanges.put(userId, change);
+        }
+    }
+
+    /**
+       Mark the documents of all users changed, e.g. when this index
+       replaces another one.
+    */
+    public void changedAll() {
+        changed(null, null);
+    }
+
+    /**
+       Generation of the documents of the given user. It grows with
+       every change to them, also over index replacements.
+    */
+    public long getUserGeneration(Long userId) {
+        long generation = anyUserChange.count;
+        Change change = userId != null ? userChanges.get(userId) : null;
+        if (change != null)
+            generation = Math.max(generation, change.count);
+        return generation;
+    }
+
+    /**
+       Whether newly acquired searchers reflect all changes to the
+       documents of the given user.
+    */
+    public boolean isSearchable(Long userId) {
+        Change change = userId != null ? userChanges.get(userId) : null;
+        return anyUserChange.isSearchable() &&
+            (change == null || change.isSearchable());
+    }
+
+    /**
+       Add or replace the document identified by the given term in
+       the partition of the user or object.
+    */
+    public void updateDocument(Long userId, Term idTerm, Document doc)
+        throws IOException
+    {
+        partitionLock.readLock().lock();
+        try {
+            List<LuceneIndex> indexes = partitionsFor(userId, idTerm, true);
+            if (indexes.size() != 1)
+                throw new IOException("No index partition for " +
+                                      idTerm.text());
+            indexes.get(0).updateDocument(idTerm, doc);
+            changed(userId, indexes);
+        } finally {
+            partitionLock.readLock().unlock();
+        }
+    }
+
+    /**
+       Delete the documents containing the given term, in all
+       partitions if the user is null and needed for finding the
+       partition.
+    */
+    public void deleteDocuments(Long userId, Term term) throws IOException {
+        partitionLock.readLock().lock();
+        try {
+            List<LuceneIndex> indexes = partitionsFor(userId, term, false);
+            for (LuceneIndex index : indexes)
+                index.deleteDocuments(term);
+            changed(userId, indexes);
+        } finally {
+            partitionLock.readLock().unlock();
+        }
+    }
+
+    /**
+       Delete the documents of the user matching the given query. In
+       the per-user layout the partition is removed altogether once
+       it is empty.
+    */
+    public void deleteUserDocuments(Long userId, Query query)
+        throws IOException
+    {
+        if (partitioning != USER) {
+            List<LuceneIndex> indexes = partitionsFor(userId, null, false);
+            for (LuceneIndex index : indexes)
+                index.deleteDocuments(query);
+            changed(userId, indexes);
+            return;
+        }
+
+        // Nobody may use the partition while it may be removed
+        partitionLock.writeLock().lock();
+        try {
+            LuceneIndex index = partition(userId, false);
+            if (index == null)
+                return;
+
+            index.deleteDocuments(query);
+            index.commit();
+            if (index.numDocs() == 0) {
+                removePartition(userId);
+                LuceneIndex.deleteDirectory(index.getPath());
+                LOG.info("Removed index partition of user {}.", userId);
+            } else {
+                changed(userId, Collections.singletonList(index));
+            }
+        } finally {
+            partitionLock.writeLock().unlock();
+        }
+    }
+
+    /**
+       Close the user partition and forget it, call with the write
+       lock of partitionLock held. Searches of the user get a new
+       reader.
+    */
+    private void removePartition(Long userId) throws IOException {
+        LuceneIndex index;
+        synchronized (partitions) {
+            index = partitions.remove(userId);
+            lastUse.remove(userId);
+        }
+        if (index != null)
+            index.close();
+        changed(userId, null);
+    }
+
+    /**
+       Close the user partitions that have not been used for the
+       configured idle time, with their writer and reopen thread.
+       Pending changes are committed when the partition is closed.
+    */
+    public void closeIdlePartitions() throws IOException {
+        if (partitioning != USER)
+            return;
+
+        long idleSince = System.currentTimeMillis() - partitionIdleMs;
+        List<Long> idle = new ArrayList<Long>();
+        for (Map.Entry<Long, Long> e : lastUse.entrySet())
+            if (e.getValue() < idleSince)
+                idle.add(e.getKey());
+        if (idle.isEmpty())
+            return;
+
+        partitionLock.writeLock().lock();
+        try {
+            for (Long userId : idle) {
+                // It may have been used while waiting for the lock
+                Long used = lastUse.get(userId);
+                if (used != null && used < idleSince) {
+                    removePartition(userId);
+                    LOG.debug("Closed idle index partition of user {}.",
+                              userId);
+                }
+            }
+        } finally {
+            partitionLock.writeLock().unlock();
+        }
+    }
+
+    /**
+       Work done on the documents of one partition at a time.
+    */
+    public interface PartitionTask {
+        /**
+           @param userId Owner of the documents of the partition, or
+           null if it may hold documents of several users
+           @param searcher Searcher over the partition
+           @return Number of documents handled
+        */
+        long run(Long userId, IndexSearcher searcher) throws IOException;
+    }
+
+    /**
+       Run the task on each partition in turn. In the per-user layout
+       a partition that is not open is opened only for the task, and
+       closed again with its changes committed right after, so that
+       the partitions of all users are never open at once.
+
+       @return Sum of the counts returned by the task
+    */
+    public long forEachPartition(PartitionTask task) throws IOException {
+        if (partitioning != USER) {
+            IndexSearcher searcher = acquire();
+            try {
+                return task.run(null, searcher);
+            } finally {
+                release(searcher);
+            }
+        }
+
+        long count = 0;
+        for (Long userId : userPartitionIds()) {
+            boolean wasOpen = partitions.containsKey(userId);
+            IndexSearcher searcher = acquire(userId);
+            try {
+                count += task.run(userId, searcher);
+            } finally {
+                release(searcher);
+            }
+
+            if (!wasOpen) {
+                partitionLock.writeLock().lock();
+                try {
+                    removePartition(userId);
+                } finally {
+                    partitionLock.writeLock().unlock();
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+       Block until searches see all changes made so far.
+    */
+    public void waitForChanges() {
+        partitionLock.readLock().lock();
+        try {
+            for (LuceneIndex index : openPartitions())
+                index.waitForGeneration(index.getGeneration());
+        } finally {
+            partitionLock.readLock().unlock();
+        }
+    }
+
+    /**
+       Acquire a searcher over the documents of the given user, an
+       empty one if the user has no partition. Always give it back
+       with release().
+    */
+    public IndexSearcher acquire(Long userId) throws IOException {
+        partitionLock.readLock().lock();
+        try {
+            List<LuceneIndex> indexes = partitionsFor(userId, null, false);
+            if (indexes.isEmpty())
+                return new IndexSearcher(new MultiReader());
+            if (indexes.size() == 1)
+                return indexes.get(0).acquire();
+            return acquireAll();
+        } finally {
+            partitionLock.readLock().unlock();
+        }
+    }
+
+    /**
+       Acquire a searcher over all documents. Always give it back
+       with release().
+    */
+    public IndexSearcher acquire() throws IOException {
+        partitionLock.readLock().lock();
+        try {
+            return acquireAll();
+        } finally {
+            partitionLock.readLock().unlock();
+        }
+    }
+
+    private IndexSearcher acquireAll() throws IOException {
+        List<LuceneIndex> all = allPartitions();
+        if (all.isEmpty())
+            return new IndexSearcher(new MultiReader());
+        if (all.size() == 1)
+            return all.get(0).acquire();
+
+        List<IndexSearcher> searchers = new ArrayList<IndexSearcher>();
+        try {
+            for (LuceneIndex index : all)
+                searchers.add(index.acquire());
+
+            IndexReader[] readers = new IndexReader[searchers.size()];
+            for (int i=0; i<readers.length; i++)
+                readers[i] = searchers.get(i).getIndexReader();
+
+            synchronized (this) {
+                if (composite == null ||
+                    !Arrays.equals(readers, compositeReaders)) {
+                    // The reader holds its own references to the
+                    // partition readers until it is closed
+                    IndexSearcher searcher =
+                        new IndexSearcher(new MultiReader(readers, false),
+                                          searchExecutor);
+                    if (composite != null)
+                        composite.getIndexReader().decRef();
+                    composite = searcher;
+                    compositeReaders = readers;
+                }
+                composite.getIndexReader().incRef();
+                return composite;
+            }
+        } finally {
+            for (IndexSearcher searcher : searchers)
+                searcher.getIndexReader().decRef();
+        }
+    }
+
+    /** Give back a searcher acquired with acquire(). */
+    public void release(IndexSearcher searcher) throws IOException {
+        searcher.getIndexReader().decRef();
+    }
+
+    /**
+       User data stored with the last commit, or set to be stored
+       with the next one.
+    */
+    public Map<String, String> getCommitData() {
+        return main.getCommitData();
+    }
+
+    /** Set user data to be stored with the next commit. */
+    public void setCommitData(Map<String, String> commitData) {
+        main.setCommitData(commitData);
+    }
+
+    /**
+       Commit if the commit policy says so, see
+       LuceneIndex.maybeCommit().
+
+       @return True if a commit was made
+    */
+    public boolean maybeCommit() throws IOException {
+        // Not while holding the lock of this, see acquire()
+        closeIdlePartitions();
+        return maybeCommitPending();
+    }
+
+    private synchronized boolean maybeCommitPending() throws IOException {
+        long pending = main.getUncommittedCount();
+        for (LuceneIndex index : openPartitions())
+            if (index != main)
+                pending += index.getUncommittedCount();
+        if (pending == 0)
+            return false;
+
+        long elapsed = System.currentTimeMillis() - lastCommitTime;
+        if (pending >= commitMaxDocs || elapsed >= commitIntervalMs) {
+            commit();
+            return true;
+        }
+        return false;
+    }
+
+    /** Commit all pending changes to disk, the main index last. */
+    public synchronized void commit() throws IOException {
+        for (LuceneIndex index : openPartitions())
+            if (index != main)
+                index.commit();
+        main.commit();
+        lastCommitTime = System.currentTimeMillis();
+    }
+
+    /** Commit pending changes and give back all indexes. */
+    @Override
+    public synchronized void close() throws IOException {
+        if (composite != null) {
+            composite.getIndexReader().decRef();
+            composite = null;
+        }
+        synchronized (partitions) {
+            for (LuceneIndex index : partitions.values())
+                index.close();
+            partitions.clear();
+            lastUse.clear();
+        }
+        main.close();
+    }
+}
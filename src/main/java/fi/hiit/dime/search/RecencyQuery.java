@@ -0,0 +1,170 @@
+/*
+  Copyright (c) 2015-2016 University of Helsinki
+
+  Permission is hereby granted, free of charge, to any person
+  obtaining a copy of this software and associated documentation files
+  (the "Software"), to deal in the Software without restriction,
+  including without limitation the rights to use, copy, modify, merge,
+  publish, distribute, sublicense, and/or sell copies of the Software,
+  and to permit persons to whom the Software is furnished to do so,
+  subject to the following conditions:
+
+  The above copyright notice and this permission notice shall be
+  included in all copies or substantial portions of the Software.
+
+  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+  EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+  MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+  NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+  BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+  ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+  CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+  SOFTWARE.
+*/
+
+package fi.hiit.dime.search;
+
+import org.apache.lucene.index.DocValues;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.NumericDocValues;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.Explanation;
+import org.apache.lucene.search.FilterScorer;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.Scorer;
+import org.apache.lucene.search.Weight;
+
+import java.io.IOException;
+import java.util.Set;
+
+/**
+   Query that scores the documents of another query lower the older
+   they are, so that recent relevant documents rank first. The score
+   is halved for every half-life of age, read from a numeric doc
+   values field holding the time in milliseconds. Documents without
+   a time keep their score.
+*/
+public class RecencyQuery extends Query {
+    private final Query query;
+    private final String timeField;
+    private final long now;
+    private final long halfLifeMs;
+
+    /**
+       @param query Query to rescore
+       @param timeField Doc values field with the time of each document
+       @param now Time from which the age is counted
+       @param halfLifeMs Age in milliseconds that halves the score
+    */
+    public RecencyQuery(Query query, String timeField, long now,
+                        long halfLifeMs) {
+        this.query = query;
+        this.timeField = timeField;
+        this.now = now;
+        this.halfLifeMs = Math.max(halfLifeMs, 1);
+    }
+
+    /** Factor by which the score of a document of the given time is
+        multiplied. */
+    public float decay(long time) {
+        if (time == 0)
+            return 1.0f;
+        long age = Math.max(now - time, 0);
+        return (float)Math.pow(0.5, (double)age / halfLifeMs);
+    }
+
+    @Override
+    public Query rewrite(IndexReader reader) throws IOException {
+        Query rewritten = query.rewrite(reader);
+        if (rewritten == query)
+            return this;
+        Query q = new RecencyQuery(rewritten, timeField, now, halfLifeMs);
+        q.setBoost(getBoost());
+        return q;
+    }
+
+    @Override
+    public Weight createWeight(IndexSearcher searcher, boolean needsScores)
+        throws IOException
+    {
+        final Weight inner = searcher.createWeight(query, needsScores);
+        if (!needsScores)
+            return inner;
+
+        return new Weight(this) {
+            @Override
+            public void extractTerms(Set<Term> terms) {
+                inner.extractTerms(terms);
+            }
+
+            @Override
+            public float getValueForNormalization() throws IOException {
+                return inner.getValueForNormalization();
+            }
+
+            @Override
+            public void normalize(float norm, float topLevelBoost) {
+                inner.normalize(norm, topLevelBoost * getBoost());
+            }
+
+            @Override
+            public Scorer scorer(LeafReaderContext context) throws IOException {
+                Scorer scorer = inner.scorer(context);
+                if (scorer == null)
+                    return null;
+
+                final NumericDocValues times =
+                    DocValues.getNumeric(context.reader(), timeField);
+                return new FilterScorer(scorer, this) {
+                    @Override
+                    public float score() throws IOException {
+                        return in.score() * decay(times.get(docID()));
+                    }
+                };
+            }
+
+            @Override
+            public Explanation explain(LeafReaderContext context, int doc)
+                throws IOException
+            {
+                Explanation expl = inner.explain(context, doc);
+                if (!expl.isMatch())
+                    return expl;
+
+                long time = DocValues.getNumeric(context.reader(),
+                                                 timeField).get(doc);
+                float decay = decay(time);
+                return Explanation.match(expl.getValue() * decay,
+                                         "recency decay of:", expl,
+                                         Explanation.match(decay, "decay, age " +
+                                                           (now - time) + " ms"));
+            }
+        };
+    }
+
+    @Override
+    public String toString(String field) {
+        return "recency(" + query.toString(field) + ", " + timeField +
+            ", halfLife=" + halfLifeMs + "ms)";
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (!super.equals(obj))
+            return false;
+        RecencyQuery other = (RecencyQuery)obj;
+        return query.equals(other.query) && timeField.equals(other.timeField)
+            && now == other.now && halfLifeMs == other.halfLifeMs;
+    }
+
+    @Override
+    public int hashCode() {
+        int h = super.hashCode();
+        h = 31 * h + query.hashCode();
+        h = 31 * h + timeField.hashCode();
+        h = 31 * h + (int)(now ^ (now >>> 32));
+        return 31 * h + (int)(halfLifeMs ^ (halfLifeMs >>> 32));
+    }
+}
@@ -0,0 +1,96 @@
+/*
+  Copyright (c) 2015-2016 University of Helsinki
+
+  Permission is hereby granted, free of charge, to any person
+  obtaining a copy of this software and associated documentation files
+  (the "Software"), to deal in the Software without restriction,
+  including without limitation the rights to use, copy, modify, merge,
+  publish, distribute, sublicense, and/or sell copies of the Software,
+  and to permit persons to whom the Software is furnished to do so,
+  subject to the following conditions:
+
+  The above copyright notice and this permission notice shall be
+  included in all copies or substantial portions of the Software.
+
+  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+  EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+  MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+  NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+  BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+  ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+  CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+  SOFTWARE.
+*/
+
+package fi.hiit.dime.search;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+
+import java.util.Date;
+
+/** Progress of a full reindexing of the search index, with an
+    estimate of the time remaining.
+*/
+@JsonInclude(value=JsonInclude.Include.NON_NULL)
+public class ReindexProgress {
+    public enum State { IDLE, RUNNING, CATCHING_UP, DONE }
+
+    public State state = State.IDLE;
+
+    /** Index version being built. */
+    public String version;
+
+    /** Number of objects to index, and indexed so far. */
+    public long total;
+    public long done;
+
+    public Date started;
+    public Date finished;
+
+    /** Estimated seconds until all objects are indexed. */
+    public Long etaSeconds;
+
+    synchronized void start(String version, long total) {
+        this.state = State.RUNNING;
+        this.version = version;
+        this.total = total;
+        this.done = 0;
+        this.started = new Date();
+        this.finished = null;
+    }
+
+    synchronized void advance(long count) {
+        done += count;
+    }
+
+    synchronized void catchingUp() {
+        state = State.CATCHING_UP;
+    }
+
+    synchronized void finish() {
+        state = State.DONE;
+        done = Math.max(done, total);
+        finished = new Date();
+    }
+
+    /** Returns a copy of the current progress.
+     */
+    public synchronized ReindexProgress snapshot() {
+        ReindexProgress p = new ReindexProgress();
+        p.state = state;
+        p.version = version;
+        p.total = total;
+        p.done = done;
+        p.started = started;
+        p.finished = finished;
+
+        if (state == State.RUNNING && done > 0) {
+            long elapsed = System.currentTimeMillis() - started.getTime();
+            long remaining = Math.max(total - done, 0);
+            p.etaSeconds = elapsed * remaining / done / 1000;
+        } else if (state == State.CATCHING_UP) {
+            p.etaSeconds = 0L;
+        }
+        return p;
+    }
+}
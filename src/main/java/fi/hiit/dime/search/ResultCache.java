@@ -0,0 +1,184 @@
+/*
+  Copyright (c) 2015-2016 University of Helsinki
+
+  Permission is hereby granted, free of charge, to any person
+  obtaining a copy of this software and associated documentation files
+  (the "Software"), to deal in the Software without restriction,
+  including without limitation the rights to use, copy, modify, merge,
+  publish, distribute, sublicense, and/or sell copies of the Software,
+  and to permit persons to whom the Software is furnished to do so,
+  subject to the following conditions:
+
+  The above copyright notice and this permission notice shall be
+  included in all copies or substantial portions of the Software.
+
+  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+  EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+  MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+  NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+  BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+  ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+  CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+  SOFTWARE.
+*/
+
+package fi.hiit.dime.search;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+   Bounded least-recently-used cache of search results.
+
+   Each entry is stored with the generation of the data it was
+   computed from, and is only returned while the generation stays
+   the same. Concurrent requests for the same key and generation are
+   coalesced, so that only one of them computes the value.
+*/
+public class ResultCache<V> {
+    /** Counters of the cache, for monitoring. */
+    @JsonInclude(value=JsonInclude.Include.NON_NULL)
+    public static class Stats {
+        public int size;
+        public int maxSize;
+        public long hits;
+        public long misses;
+
+        /** Requests that waited for an identical one to finish. */
+        public long coalesced;
+
+        /** Entries dropped to make room for new ones. */
+        public long evictions;
+
+        /** Entries dropped as their data had changed. */
+        public long invalidations;
+    }
+
+    private static class Entry<V> {
+        final long generation;
+        final V value;
+
+        Entry(long generation, V value) {
+            this.generation = generation;
+            this.value = value;
+        }
+    }
+
+    private final int maxSize;
+    private final Map<String, Entry<V>> entries;
+    private final ConcurrentMap<String, FutureTask<V>> inFlight =
+        new ConcurrentHashMap<String, FutureTask<V>>();
+
+    // Guarded by this
+    private final Stats stats = new Stats();
+
+    /**
+       @param maxSize Maximum number of entries
+    */
+    public ResultCache(final int maxSize) {
+        this.maxSize = maxSize;
+        this.entries = new LinkedHashMap<String, Entry<V>>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry<V>> e) {
+                if (size() <= maxSize)
+                    return false;
+                stats.evictions++;
+                return true;
+            }
+        };
+    }
+
+    /**
+       Return the cached value for the key if it was computed from
+       the given generation, otherwise compute it with the loader.
+
+       @param key Key of the value, including everything it depends on
+       @param generation Current generation of the data
+       @param store Whether the value computed now may be cached
+       @param loader Computes the value
+    */
+    public V get(String key, long generation, boolean store,
+                 Callable<V> loader) throws Exception
+    {
+        synchronized (this) {
+            Entry<V> entry = entries.get(key);
+            if (entry != null) {
+                if (entry.generation == generation) {
+                    stats.hits++;
+                    return entry.value;
+                }
+                entries.remove(key);
+                stats.invalidations++;
+            }
+        }
+
+        String taskKey = key + "@" + generation;
+        FutureTask<V> task = new FutureTask<V>(loader);
+        FutureTask<V> running = inFlight.putIfAbsent(taskKey, task);
+        if (running != null) {
+            synchronized (this) {
+                stats.coalesced++;
+            }
+            return result(running);
+        }
+
+        synchronized (this) {
+            stats.misses++;
+        }
+        try {
+            task.run();
+            V value = result(task);
+            if (store) {
+                synchronized (this) {
+                    Entry<V> entry = entries.get(key);
+                    if (entry == null || entry.generation < generation)
+                        entries.put(key, new Entry<V>(generation, value));
+                }
+            }
+            return value;
+        } finally {
+            inFlight.remove(taskKey, task);
+        }
+    }
+
+    private static <V> V result(FutureTask<V> task) throws Exception {
+        try {
+            return task.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception)
+                throw (Exception)cause;
+            throw (Error)cause;
+        }
+    }
+
+    /** Remove the entry of the given key. */
+    public synchronized void remove(String key) {
+        entries.remove(key);
+    }
+
+    /** Remove all entries. */
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+    /** Returns a copy of the current counters. */
+    public synchronized Stats getStats() {
+        Stats s = new Stats();
+        s.size = entries.size();
+        s.maxSize = maxSize;
+        s.hits = stats.hits;
+        s.misses = stats.misses;
+        s.coalesced = stats.coalesced;
+        s.evictions = stats.evictions;
+        s.invalidations = stats.invalidations;
+        return s;
+    }
+}
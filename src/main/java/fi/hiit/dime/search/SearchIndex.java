@@ -33,28 +33,41 @@ import fi.hiit.dime.data.ReadingEvent;
 import fi.hiit.dime.data.ResourcedEvent;
 import fi.hiit.dime.data.Tag;
 import fi.hiit.dime.data.SearchEvent;
+import fi.hiit.dime.database.DiMeDAO;
 import fi.hiit.dime.database.EventDAO;
+import fi.hiit.dime.database.IndexOutboxDAO;
+import fi.hiit.dime.database.IndexOutboxEntry;
+import fi.hiit.dime.database.IndexOutboxEntry.Op;
 import fi.hiit.dime.database.InformationElementDAO;
 import fi.hiit.dime.search.SearchQuery;
 import fi.hiit.dime.search.TextSearchQuery;
 import fi.hiit.dime.search.KeywordSearchQuery;
 
 import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.CachingTokenFilter;
+import org.apache.lucene.analysis.TokenStream;
 import org.apache.lucene.analysis.en.EnglishAnalyzer;
+import org.apache.lucene.analysis.miscellaneous.PerFieldAnalyzerWrapper;
 import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
 import org.apache.lucene.document.Document;
 import org.apache.lucene.document.Field;
 import org.apache.lucene.document.FieldType;
+import org.apache.lucene.document.BinaryDocValuesField;
 import org.apache.lucene.document.LongField;
+import org.apache.lucene.document.NumericDocValuesField;
+import org.apache.lucene.document.StoredField;
 import org.apache.lucene.document.StringField;
 import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.BinaryDocValues;
 import org.apache.lucene.index.DirectoryReader;
 import org.apache.lucene.index.IndexOptions;
 import org.apache.lucene.index.IndexReader;
-import org.apache.lucene.index.IndexWriter;
-import org.apache.lucene.index.IndexWriterConfig.OpenMode;
-import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.IndexableField;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.MultiFields;
 import org.apache.lucene.index.PostingsEnum;
+import org.apache.lucene.index.ReaderUtil;
 import org.apache.lucene.index.Term;
 import org.apache.lucene.index.Terms;
 import org.apache.lucene.index.TermsEnum;
@@ -62,20 +75,29 @@ import org.apache.lucene.queryparser.flexible.core.QueryNodeException;
 import org.apache.lucene.queryparser.flexible.standard.StandardQueryParser;
 import org.apache.lucene.search.BooleanClause;
 import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.ConstantScoreQuery;
+import org.apache.lucene.search.DisjunctionMaxQuery;
 import org.apache.lucene.search.DocIdSetIterator;
 import org.apache.lucene.search.IndexSearcher;
 import org.apache.lucene.search.MatchAllDocsQuery;
+import org.apache.lucene.search.MultiPhraseQuery;
+import org.apache.lucene.search.NumericRangeQuery;
+import org.apache.lucene.search.PhraseQuery;
+import org.apache.lucene.search.PrefixQuery;
 import org.apache.lucene.search.Query;
 import org.apache.lucene.search.ScoreDoc;
 import org.apache.lucene.search.TermQuery;
 import org.apache.lucene.search.TopDocs;
-import org.apache.lucene.search.Weight;
 import org.apache.lucene.search.similarities.DefaultSimilarity;
+import org.apache.lucene.store.ByteArrayDataInput;
+import org.apache.lucene.store.Directory;
 import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.store.OutputStreamDataOutput;
+import org.apache.lucene.util.Bits;
 import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.IOUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.springframework.beans.factory.annotation.Autowired;
 
 import com.google.common.base.Optional;
 import com.optimaize.langdetect.LanguageDetector;
@@ -84,19 +106,53 @@ import com.optimaize.langdetect.text.CommonTextObjectFactories;
 import com.optimaize.langdetect.text.TextObject;
 import com.optimaize.langdetect.text.TextObjectFactory;
 import org.springframework.beans.factory.annotation.Autowired;
-
+import org.springframework.context.annotation.Lazy;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallback;
+import org.springframework.transaction.support.TransactionTemplate;
+import org.springframework.util.Base64Utils;
+import org.springframework.util.DigestUtils;
+
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.PriorityQueue;
 import java.util.Set;
+import java.util.TimeZone;
+import java.util.TreeMap;
 import java.util.TreeSet;
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.annotation.PreDestroy;
 
 /**
    Class that encapsulates the search index.
@@ -118,43 +174,187 @@ public class SearchIndex {
     private static final String idField = "id";
     private static final String userIdField = "userId";
     private static final String textQueryField = "plainTextContent";
+    // The text analyzed for its language is in textQueryField + "_" +
+    // language, and the language in languageField
+    private static final String languageField = "language";
     private static final String classField = "@type";
     private static final String typeField = "type";
 
+    // Stored only, for building light search results
+    private static final String titleField = "title";
+    private static final String uriField = "uri";
+    private static final String timeField = "time";
+    private static final String resourceField = "resource";
+    private static final String eventField = "event";
+
+    // Start and end time in milliseconds, indexed for range
+    // filters and as doc values for recency ranking
+    private static final String startField = "start";
+    private static final String endField = "end";
+
+    // Doc values with the most frequent terms of the document
+    private static final String keywordsField = "keywords";
+
     private static final String versionField = "dime_version";
-    private static final String currentVersionNumber = "7";
+    private static final String currentVersionNumber = "15";
+    private static final String reindexField = "dime_reindex";
+
+    // Highest object id of each kind the index is known to be up to
+    // date with, suffixed with the kind
+    private static final String highWaterField = "dime_max_id_";
+
+    // Each index version lives in its own sub directory of the index
+    // path, the pointer file names the one in use.
+    private static final String indexDirPrefix = "index-";
+    private static final String currentIndexFile = "current";
 
     private static final String dataClassPrefix = "fi.hiit.dime.data.";
 
-    private static AtomicBoolean updatingIndex = new AtomicBoolean(false);
     private static boolean firstUpdate = true;
 
-    private FSDirectory fsDir;
-    private DirectoryReader reader = null;
-    private IndexSearcher searcher = null;
-    private StandardQueryParser parser;
+    private final DiMeProperties config;
+    private final Path indexRoot;
+    private volatile PartitionedIndex index;
+    private ExecutorService indexer;
+
+    // Index being rebuilt in the background after a version change
+    private volatile PartitionedIndex rebuildIndex = null;
+    private boolean rebuildStarted = false;
+    private volatile boolean closing = false;
+    private ExecutorService reindexer;
+    private final ReindexProgress progress = new ReindexProgress();
+    private ExecutorService indexWorkers;
+
+    // Searches several index partitions concurrently
+    private ExecutorService searchers;
+
+    // Recent search results, null if disabled
+    private ResultCache<Hits> resultCache = null;
+
+    // Searchers kept for the following pages of searches
+    private CursorSearchers cursorSearchers;
+
+    // Auto-generated tags of objects by key, waiting to be saved in
+    // batches by the tagger thread. Guarded by pendingTags.
+    private final Map<Long, List<String>> pendingTags =
+        new LinkedHashMap<Long, List<String>>();
+    private int tagsInProgress = 0;
+    private boolean taggerRunning = false;
+    private ExecutorService tagger;
+    private int autoTagRate;
+    private int indexThreads;
+    private FutureTask<Long> queuedUpdate = null;
+
+    // Outbox entries applied to the index but not yet committed.
+    // Guarded by appliedIds.
+    private final Set<Long> appliedIds = new HashSet<Long>();
+    private int batchSize;
+    private int reindexChunkSize;
+
+    private final FieldType contentFieldType;
+    private final DocKeys docKeys = new DocKeys();
+
+    // Similarity used to compute tf-idf values for keywords
+    private static final DefaultSimilarity similarity = new DefaultSimilarity();
+
+    // Term statistics of the readers in use, by reader cache key,
+    // dropped when the reader is closed
+    private final ConcurrentMap<Object, TermStats> termStats =
+        new ConcurrentHashMap<Object, TermStats>();
+    private final IndexReader.ReaderClosedListener termStatsClosedListener =
+        new IndexReader.ReaderClosedListener() {
+            public void onClose(IndexReader reader) {
+                termStats.remove(reader.getCombinedCoreAndDeletesKey());
+            }
+        };
+    private int keywordsPerDoc;
+    private int keywordQueryMaxTerms;
+
+    // Limits on the terms of similar objects queries
+    private int similarMinTermFreq;
+    private int similarMinDocFreq;
+    private int similarMaxDocFreq;
+    private int similarMaxTerms;
+    // Query parsers are not thread-safe, so each thread has its own
+    private ThreadLocal<StandardQueryParser> parser;
     private Analyzer analyzer = null;
 
+    // Analyzers of the languages with their own text fields, and the
+    // analyzer of all fields
+    private final Map<String, Analyzer> languageAnalyzers =
+        new TreeMap<String, Analyzer>();
+    private Analyzer fieldAnalyzer;
+    private final FieldType languageFieldType;
+
+    // Languages of the documents of each user, for the readers in
+    // use by reader cache key, dropped when the reader is closed
+    private final ConcurrentMap<Object, Map<Long, Set<String>>> userLanguages =
+        new ConcurrentHashMap<Object, Map<Long, Set<String>>>();
+    private final IndexReader.ReaderClosedListener userLanguagesClosedListener =
+        new IndexReader.ReaderClosedListener() {
+            public void onClose(IndexReader reader) {
+                userLanguages.remove(reader.getCombinedCoreAndDeletesKey());
+            }
+        };
+
+    // Recently parsed query strings
+    private static final int maxParsedQueries = 1000;
+    private final Map<String, Query> parsedQueries =
+        new LinkedHashMap<String, Query>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Query> e) {
+                return size() > maxParsedQueries;
+            }
+        };
+
     private String analyzerName = null;
 
+    // A different partitioning makes a different index version
+    private String layout;
+
     @Autowired
     private InformationElementDAO infoElemDAO;
 
     @Autowired
     private EventDAO eventDAO;
 
+    @Autowired
+    private IndexOutboxDAO indexOutbox;
+
+    @Autowired
+    private PlatformTransactionManager transactionManager;
+
+    // Lazy, so that the language profiles are only loaded when the
+    // first text is detected
+    @Lazy
     @Autowired
     private LanguageDetector languageDetector;
 
     private TextObjectFactory textObjectFactory = CommonTextObjectFactories.forDetectingOnLargeText();
+    private TextObjectFactory shortTextObjectFactory = CommonTextObjectFactories.forDetectingShortCleanText();
+
+    // Texts shorter than this are detected as short texts
+    private static final int maxShortTextLength = 200;
+
+    // Recently detected languages by content hash, "" if the language
+    // could not be detected
+    private static final int maxDetectedLanguages = 10000;
+    private final Map<String, String> detectedLanguages =
+        new LinkedHashMap<String, String>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, String> e) {
+                return size() > maxDetectedLanguages;
+            }
+        };
 
     /**
        Constructor.
 
-       @param indexPath Path to Lucene index
+       @param config DiMe configuration, with Lucene index path and
+       analyzer name.
     */
-    public SearchIndex(String indexPath, String analyzerName) throws IOException {
-        fsDir = FSDirectory.open(Paths.get(indexPath));
+    public SearchIndex(DiMeProperties config) throws IOException {
+        String analyzerName = config.getLuceneAnalyzer();
 
         if (analyzerName.equals("English")) {
             analyzer = new EnglishAnalyzer();
@@ -169,7 +369,327 @@ public class SearchIndex {
         LOG.info("Using {} analyzer for Lucene.", analyzerName);
         this.analyzerName = analyzerName;
 
-        parser = new StandardQueryParser(analyzer);
+        Map<String, Analyzer> fieldAnalyzers = new HashMap<String, Analyzer>();
+        for (String entry : config.getLuceneLanguageAnalyzers()) {
+            if (entry.trim().isEmpty())
+                continue;
+            String[] parts = entry.split(":", 2);
+            Analyzer langAnalyzer = parts.length == 2 ?
+                languageAnalyzer(parts[0].trim(), parts[1].trim()) : null;
+            if (langAnalyzer == null) {
+                LOG.error("Unknown Lucene language analyzer given in " +
+                          "config ({})!", entry);
+                continue;
+            }
+            languageAnalyzers.put(parts[0].trim(), langAnalyzer);
+            fieldAnalyzers.put(languageField(parts[0].trim()), langAnalyzer);
+        }
+        if (!languageAnalyzers.isEmpty())
+            LOG.info("Using language analyzers for {}.",
+                     languageAnalyzers.keySet());
+        fieldAnalyzer = new PerFieldAnalyzerWrapper(analyzer, fieldAnalyzers);
+
+        languageFieldType = new FieldType();
+        languageFieldType.setIndexOptions(IndexOptions.DOCS_AND_FREQS_AND_POSITIONS);
+        languageFieldType.setStored(false);
+        languageFieldType.setTokenized(true);
+        languageFieldType.freeze();
+
+        final Analyzer parserAnalyzer = fieldAnalyzer;
+        parser = new ThreadLocal<StandardQueryParser>() {
+                @Override
+                protected StandardQueryParser initialValue() {
+                    return new StandardQueryParser(parserAnalyzer);
+                }
+            };
+
+        this.config = config;
+        layout = PartitionedIndex.layout(config);
+        indexRoot = Paths.get(config.getLuceneIndexPath());
+
+        int searchThreads = config.getLuceneSearchThreads();
+        if (searchThreads <= 0)
+            searchThreads = Runtime.getRuntime().availableProcessors();
+        searchers = Executors.newFixedThreadPool(searchThreads,
+                                                 new ThreadFactory() {
+                private int count = 0;
+                public synchronized Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "DiMe searcher " + ++count);
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+
+        index = PartitionedIndex.open(activeIndexPath(), fieldAnalyzer,
+                                      config, searchers);
+
+        batchSize = config.getLuceneIndexBatchSize();
+        reindexChunkSize = config.getLuceneReindexChunkSize();
+        keywordsPerDoc = config.getLuceneKeywordsPerDoc();
+        keywordQueryMaxTerms = config.getLuceneKeywordQueryMaxTerms();
+        similarMinTermFreq = config.getLuceneSimilarMinTermFreq();
+        similarMinDocFreq = config.getLuceneSimilarMinDocFreq();
+        similarMaxDocFreq = config.getLuceneSimilarMaxDocFreq();
+        similarMaxTerms = config.getLuceneSimilarMaxTerms();
+        autoTagRate = config.getLuceneAutoTagRate();
+        cursorSearchers =
+            new CursorSearchers(config.getLuceneCursorLifetime()*1000L,
+                                config.getLuceneCursorMaxSearchers());
+        if (config.getLuceneResultCacheSize() > 0)
+            resultCache = new ResultCache<Hits>(config.getLuceneResultCacheSize());
+
+        // If the index was built by another version, keep using it
+        // while a new one is built next to it.
+        String version = index.getCommitData().get(versionField);
+        if (version != null && !version.equals(getVersion())) {
+            LOG.info("Lucene index version has changed {} -> {}, " +
+                     "reindexing all documents in the background.",
+                     version, getVersion());
+            rebuildIndex = PartitionedIndex.open(versionIndexPath(),
+                                                 fieldAnalyzer, config,
+                                                 searchers);
+        }
+        removeOldIndexes();
+
+        indexer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "DiMe indexer");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+
+        reindexer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "DiMe reindexer");
+                    t.setDaemon(true);
+                    t.setPriority(Thread.MIN_PRIORITY);
+                    return t;
+                }
+            });
+
+        tagger = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "DiMe tagger");
+                    t.setDaemon(true);
+                    t.setPriority(Thread.MIN_PRIORITY);
+                    return t;
+                }
+            });
+
+        indexThreads = config.getLuceneIndexThreads();
+        if (indexThreads <= 0)
+            indexThreads = Runtime.getRuntime().availableProcessors();
+        indexWorkers = Executors.newFixedThreadPool(indexThreads,
+                                                    new ThreadFactory() {
+                private int count = 0;
+                public synchronized Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "DiMe index worker " + ++count);
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+
+        // create a field that stores term vectors, i.e. tf (idf) values
+        contentFieldType = new FieldType();
+        contentFieldType.setIndexOptions(IndexOptions.DOCS_AND_FREQS_AND_POSITIONS);
+        contentFieldType.setStored(false);
+        contentFieldType.setStoreTermVectors(true);
+        contentFieldType.setStoreTermVectorPositions(true);
+        contentFieldType.setStoreTermVectorOffsets(true);
+        contentFieldType.setTokenized(true);
+        contentFieldType.freeze();
+    }
+
+    /**
+       Commit any pending changes and close the index, called on
+       shutdown.
+    */
+    @PreDestroy
+    public void close() throws IOException {
+        closing = true;
+        // Objects still waiting for tags get them when next indexed
+        tagger.shutdownNow();
+        reindexer.shutdown();
+        indexer.shutdown();
+        try {
+            reindexer.awaitTermination(60, TimeUnit.SECONDS);
+            indexer.awaitTermination(60, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        indexWorkers.shutdown();
+
+        // The rebuild continues from its checkpoint on next start
+        if (rebuildIndex != null)
+            rebuildIndex.close();
+
+        List<Long> applied = takeApplied();
+        index.commit();
+        try {
+            purgeOutbox(applied);
+        } catch (RuntimeException e) {
+            // The database may already be gone on shutdown, the
+            // remaining entries are applied again on next start.
+            LOG.warn("Could not purge index outbox on shutdown", e);
+        }
+        cursorSearchers.close();
+        index.close();
+        searchers.shutdown();
+    }
+
+    /**
+       Commit pending index changes to disk if the commit policy
+       says so.
+    */
+    public void maybeCommit() {
+        // Entries applied after this are left for the next commit
+        List<Long> applied = takeApplied();
+        try {
+            if (index.maybeCommit()) {
+                purgeOutbox(applied);
+                return;
+            }
+        } catch (IOException e) {
+            LOG.error("Exception while committing search index: " + e);
+        }
+        addApplied(applied);
+    }
+
+    /**
+       Commit pending index changes to disk.
+    */
+    public void commit() {
+        List<Long> applied = takeApplied();
+        try {
+            index.commit();
+        } catch (IOException e) {
+            LOG.error("Exception while committing search index: " + e);
+            addApplied(applied);
+            return;
+        }
+        purgeOutbox(applied);
+    }
+
+    /**
+       Take the outbox entries applied so far, all of which are
+       included in a commit that starts after this.
+    */
+    private List<Long> takeApplied() {
+        synchronized (appliedIds) {
+            List<Long> ids = new ArrayList<Long>(appliedIds);
+            appliedIds.clear();
+            return ids;
+        }
+    }
+
+    /**
+       Record outbox entries as applied, also used to return those
+       taken with takeApplied() that were not committed after all.
+    */
+    private void addApplied(Collection<Long> ids) {
+        synchronized (appliedIds) {
+            appliedIds.addAll(ids);
+        }
+    }
+
+    /**
+       Remove the given outbox entries once they are included in an
+       index commit. Entries applied after that are applied again if
+       we crash before the next commit.
+    */
+    private void purgeOutbox(Collection<Long> ids) {
+        // A rebuild in progress replays all remaining entries, these
+        // stay in the outbox marked as applied.
+        if (rebuildIndex != null || ids.isEmpty())
+            return;
+
+        try {
+            indexOutbox.remove(ids);
+        } catch (RuntimeException e) {
+            addApplied(ids);
+            throw e;
+        }
+    }
+
+    /**
+       Directory of the index in use, from the pointer file. Indexes
+       created before the sub directory layout are used directly from
+       the index path.
+    */
+    private Path activeIndexPath() throws IOException {
+        Path pointer = indexRoot.resolve(currentIndexFile);
+        if (Files.exists(pointer)) {
+            String name = new String(Files.readAllBytes(pointer),
+                                     StandardCharsets.UTF_8).trim();
+            return indexRoot.resolve(name);
+        }
+
+        if (Files.isDirectory(indexRoot)) {
+            try (Directory dir = FSDirectory.open(indexRoot)) {
+                if (DirectoryReader.indexExists(dir))
+                    return indexRoot;
+            }
+        }
+
+        Path path = versionIndexPath();
+        setActiveIndexPath(path);
+        return path;
+    }
+
+    /**
+       Point the pointer file to the given index directory. The file
+       is replaced atomically, so a crash leaves either the old or
+       the new pointer.
+    */
+    private void setActiveIndexPath(Path path) throws IOException {
+        Files.createDirectories(indexRoot);
+        Path tmp = indexRoot.resolve(currentIndexFile + ".tmp");
+        Files.write(tmp, path.getFileName().toString()
+                    .getBytes(StandardCharsets.UTF_8));
+        Files.move(tmp, indexRoot.resolve(currentIndexFile),
+                   StandardCopyOption.ATOMIC_MOVE,
+                   StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /** Directory for an index of the current version. */
+    private Path versionIndexPath() {
+        return indexRoot.resolve(indexDirPrefix + getVersion());
+    }
+
+    /**
+       Remove index directories left behind by earlier versions, and
+       the files of an index in the index path itself once it has
+       been replaced.
+    */
+    private void removeOldIndexes() throws IOException {
+        Path active = index.getPath();
+        Path rebuild = rebuildIndex != null ? rebuildIndex.getPath() : null;
+
+        try (DirectoryStream<Path> paths = Files.newDirectoryStream(indexRoot)) {
+            for (Path path : paths) {
+                String name = path.getFileName().toString();
+                if (Files.isDirectory(path)) {
+                    if (name.startsWith(indexDirPrefix) &&
+                        !path.equals(active) && !path.equals(rebuild)) {
+                        LOG.info("Removing old Lucene index {}.", path);
+                        LuceneIndex.deleteDirectory(path);
+                    }
+                } else if (!active.equals(indexRoot) &&
+                           (name.startsWith("segments") ||
+                            name.startsWith("_") ||
+                            name.equals("write.lock"))) {
+                    Files.delete(path);
+                }
+            }
+        }
+    }
+
+    /**
+       Progress of the current or last full reindexing.
+    */
+    public ReindexProgress getReindexProgress() {
+        return progress.snapshot();
     }
 
     public static WeightType weightType(String weightTypeStr) {
@@ -187,109 +707,140 @@ public class SearchIndex {
     }
 
     /**
-       Get an IndexWriter for writing to the index. Remember to close
-       after use!
+       Acquire a searcher for the current view of the index. The
+       searcher is reference counted, and must always be given back
+       with releaseSearcher(), typically in a finally block.
 
-       @return An IndexWriter instance
+       @return An IndexSearcher instance
     */
-    protected IndexWriter getIndexWriter() throws IOException {
-        IndexWriterConfig iwc = new IndexWriterConfig(analyzer);
-        iwc.setOpenMode(OpenMode.CREATE_OR_APPEND);
-
-        // Advice from Lucene example:
-        // http://lucene.apache.org/core/5_3_0/demo/src-html/org/apache/lucene/demo/IndexFiles.html
-        // Optional: for better indexing performance, if you
-        // are indexing many documents, increase the RAM
-        // buffer.  But if you do this, increase the max heap
-        // size to the JVM (eg add -Xmx512m or -Xmx1g):
-        //
-        // iwc.setRAMBufferSizeMB(256.0);
-
-        IndexWriter writer = new IndexWriter(fsDir, iwc);
-
-        // NOTE: if you want to maximize search performance,
-        // you can optionally call forceMerge here.  This can be
-        // a terribly costly operation, so generally it's only
-        // worth it when your index is relatively static (ie
-        // you're done adding documents to it):
-        //
-        // writer.forceMerge(1);
+    protected IndexSearcher acquireSearcher() throws IOException {
+        return index.acquire();
+    }
 
-        // Also, for low-latency turnaround it's best to use a
-        // near-real-time reader
-        // (DirectoryReader.open(IndexWriter,boolean)). Once you have
-        // a new IndexReader, it's relatively cheap to create a new
-        // IndexSearcher from it.
+    /**
+       Acquire a searcher for the current view of the documents of
+       the given user, give it back with releaseSearcher().
+    */
+    protected IndexSearcher acquireSearcher(Long userId) throws IOException {
+        return index.acquire(userId);
+    }
 
-        return writer;
+    /**
+       Give back a searcher acquired with acquireSearcher().
+    */
+    protected void releaseSearcher(IndexSearcher searcher)
+        throws IOException
+    {
+        index.release(searcher);
     }
 
     /**
-        This has to be called before using searcher or reader.
-     */
-    protected void ensureSearcherAndReader() throws IOException {
-        if (reader == null) {
-            reader = DirectoryReader.open(fsDir);
-            searcher = new IndexSearcher(reader);
+       Lookup of indexed object ids from the term dictionary of the
+       id field, without loading any stored fields. Only used from
+       one thread at a time.
+    */
+    private static class IndexedIds {
+        private final TermsEnum termsEnum;
+        private final Bits liveDocs;
+        private PostingsEnum postings = null;
+
+        IndexedIds(IndexReader reader) throws IOException {
+            Terms terms = MultiFields.getTerms(reader, idField);
+            termsEnum = terms != null ? terms.iterator() : null;
+            liveDocs = MultiFields.getLiveDocs(reader);
         }
 
-        DirectoryReader newReader = DirectoryReader.openIfChanged(reader);
-
-        // Reinitialise reader and searcher if the index has changed.
-        if (newReader != null) {
-            reader.close();
-            reader = newReader;
-            searcher = new IndexSearcher(reader);
+        boolean contains(String docId) throws IOException {
+            if (termsEnum == null ||
+                !termsEnum.seekExact(new BytesRef(docId)))
+                return false;
+
+            // The term stays until merged away when a document is
+            // deleted
+            postings = termsEnum.postings(postings, PostingsEnum.NONE);
+            int doc;
+            while ((doc = postings.nextDoc()) != DocIdSetIterator.NO_MORE_DOCS)
+                if (liveDocs == null || liveDocs.get(doc))
+                    return true;
+            return false;
         }
     }
 
     /**
-       Get the set of indexed object ids.
+       Highest object id of the given kind the index is known to be
+       up to date with, all later changes go through the outbox.
     */
-    protected Set<String> indexedIds(IndexReader reader) throws IOException {
-        Set<String> ids = new HashSet<String>();
-
-        Set<String> fields = new HashSet<String>();
-        fields.add(idField);
+    private static long highWaterMark(PartitionedIndex target, String kind) {
+        String mark = target.getCommitData().get(highWaterField + kind);
+        return mark != null ? Long.parseLong(mark) : 0;
+    }
 
-        for (int i=0; i<reader.maxDoc(); i++) {
-            Document doc = reader.document(i, fields);
-            String docId = doc.get(idField);
+    private static void raiseHighWaterMark(PartitionedIndex target, String kind,
+                                           long id) {
+        if (id <= highWaterMark(target, kind))
+            return;
+        Map<String, String> commitData = target.getCommitData();
+        commitData.put(highWaterField + kind, Long.toString(id));
+        target.setCommitData(commitData);
+    }
 
-            ids.add(docId);
-        }
+    /**
+       Convert DiMeData object into a string to be used as the Lucene doc id.
+    */
+    private static String luceneId(DiMeData obj) {
+        return luceneId(IndexOutboxEntry.kindOf(obj), obj.getId());
+    }
 
-        return ids;
+    private static String luceneId(String kind, Long id) {
+        return kind + "_" + id;
     }
 
     /**
-       Convert DiMeData object into a string to be used as the Lucene doc id.
+       Id of the user owning the DiMeData object, used for finding
+       the index partition of the object.
     */
-    private String luceneId(DiMeData obj) {
-        if (obj instanceof Event)
-            return "event_" + obj.getId();
-        else
-            return "elem_" + obj.getId();
+    private static Long userId(DiMeData obj) {
+        return obj.user != null ? obj.user.getId() : null;
     }
 
     /**
-       Convert the Lucene doc id into an DiMeData object,
+       Numeric key of the DiMeData object, stored as doc values.
     */
-    private DiMeData idToObject(String docId) {
-        String[] parts = docId.split("_", 2);
+    private long docKey(DiMeData obj) {
+        return DocKeys.key(IndexOutboxEntry.kindOf(obj), obj.getId());
+    }
 
-        if (parts.length == 2) {
-            String type = parts[0];
-            Long id = Long.parseLong(parts[1], 10);
+    /**
+       Convert document keys into DiMeData objects, with one database
+       query per kind of object. Only objects belonging to the given
+       user are returned.
 
-            if (type.equals("elem")) {
-                return infoElemDAO.findById(id);
-            } else if (type.equals("event")) {
-                return eventDAO.findById(id);
-            }
+       @param keys Document keys
+       @param userId User id
+       @return Map from document key to the corresponding object
+    */
+    private Map<Long, DiMeData> keysToObjects(long[] keys, Long userId) {
+        Set<Long> elemIds = new HashSet<Long>();
+        Set<Long> eventIds = new HashSet<Long>();
+
+        for (long key : keys) {
+            byte kind = DocKeys.kindOf(key);
+            if (kind == DocKeys.ELEM)
+                elemIds.add(DocKeys.idOf(key));
+            else if (kind == DocKeys.EVENT)
+                eventIds.add(DocKeys.idOf(key));
+            else
+                LOG.error("Lucene returned invalid key: {}", key);
         }
 
-        return null;
+        User user = User.makeUser(userId);
+        Map<Long, DiMeData> objects = new HashMap<Long, DiMeData>();
+        for (InformationElement elem : infoElemDAO.findByIds(elemIds, user))
+            objects.put(docKey(elem), elem);
+        for (Event event : eventDAO.findByIds(eventIds, user))
+            objects.put(docKey(event), event);
+
+        return objects;
     }
 
     /**
@@ -322,12 +873,42 @@ public class SearchIndex {
     }
 
     private String getVersion() {
-        return currentVersionNumber + "_" + analyzerName;
+        String version = currentVersionNumber + "_" + analyzerName;
+        if (layout != null)
+            version += "_" + layout;
+        for (String language : languageAnalyzers.keySet())
+            version += "_" + language + ":" +
+                languageAnalyzers.get(language).getClass().getSimpleName();
+        return version;
+    }
+
+    /** Field with the text analyzed for the given language. */
+    private static String languageField(String language) {
+        return textQueryField + "_" + language;
+    }
+
+    /**
+       Analyzer of the given language from the Lucene analyzers, e.g.
+       "fi" and "Finnish" for the FinnishAnalyzer.
+
+       @return the analyzer, or null if there is no such analyzer
+    */
+    private static Analyzer languageAnalyzer(String language, String name) {
+        try {
+            Class<?> cls = Class.forName("org.apache.lucene.analysis." +
+                                         language + "." + name + "Analyzer");
+            return (Analyzer)cls.newInstance();
+        } catch (ClassNotFoundException | InstantiationException |
+                 IllegalAccessException | ClassCastException e) {
+            return null;
+        }
     }
 
     private String detectLanguage(String text) {
         if (text != null && !text.isEmpty()) {
-            TextObject textObject = textObjectFactory.forText(text);
+            TextObject textObject = text.length() < maxShortTextLength ?
+                shortTextObjectFactory.forText(text) :
+                textObjectFactory.forText(text);
             Optional<LdLocale> lang = languageDetector.detect(textObject);
             if (lang.isPresent())
                 return lang.get().getLanguage();
@@ -335,224 +916,1126 @@ public class SearchIndex {
         return null;
     }    
 
+    /**
+       Detect the language of the given task's content, or take it
+       from the cache if content with the same hash has already been
+       detected. The hash is computed from the content if the element
+       has none.
+    */
+    private void detectLanguage(IndexTask task) {
+        String hash = task.elem.contentHash;
+        if (hash == null || hash.isEmpty())
+            hash = task.content == null ? "" :
+                DigestUtils.md5DigestAsHex(task.content.getBytes(StandardCharsets.UTF_8));
+
+        synchronized (detectedLanguages) {
+            String lang = detectedLanguages.get(hash);
+            if (lang != null) {
+                task.language = lang.isEmpty() ? null : lang;
+                task.languageCached = true;
+                return;
+            }
+        }
+
+        long startTime = System.nanoTime();
+        task.language = detectLanguage(task.content);
+        task.detectionNanos = System.nanoTime() - startTime;
+
+        synchronized (detectedLanguages) {
+            detectedLanguages.put(hash, task.language == null ? "" :
+                                  task.language);
+        }
+    }
+
 
     /**
        Call to update index, e.g. after adding new information elements.
 
+       The update itself runs on a separate indexer thread. This
+       method blocks until an update that started after the call has
+       finished, so that the caller's own changes are visible to
+       searches when it returns. Concurrent callers share the same
+       queued update.
+
        NOTE: will perform a more thorough, slow, update when running
        the first time.
 
        @return Number of elements that were newly indexed
     */
     public long updateIndex() {
-        if (updatingIndex.get()) {
-            LOG.debug("Index is already being updated, stopping...");
+        if (!firstUpdate && !indexOutbox.hasPending())
             return 0;
+
+        FutureTask<Long> update;
+        synchronized (this) {
+            if (queuedUpdate == null) {
+                queuedUpdate = new FutureTask<Long>(new Callable<Long>() {
+                        public Long call() {
+                            synchronized (SearchIndex.this) {
+                                // Callers from now on need a new run
+                                queuedUpdate = null;
+                            }
+                            return runUpdate();
+                        }
+                    });
+                indexer.execute(queuedUpdate);
+            }
+            update = queuedUpdate;
+        }
+
+        try {
+            return update.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            LOG.error("Exception while updating search index: " +
+                      e.getCause());
         }
+        return 0;
+    }
 
-        if (!firstUpdate && !infoElemDAO.hasUnIndexed())
+    /**
+       Performs the actual index update, only called on the indexer
+       thread.
+    */
+    private long runUpdate() {
+        if (!firstUpdate && !indexOutbox.hasPending())
             return 0;
 
-        long count = 0;
-        IndexWriter writer = null;
-        long targetingEventCount = 0;
+        IndexingStats stats = new IndexingStats();
 
         LOG.debug("Updating Lucene index ....");
         try {
-            updatingIndex.set(true);
-
-            boolean forceReindex = false;
-            writer = getIndexWriter();
-            String version = writer.getCommitData().get(versionField);
-
-            if (version == null || !version.equals(getVersion())) {
-                if (version != null)
-                    LOG.info("Lucene index version has changed {} -> {}, " +
-                             "reindexing all documents.", version,
-                             getVersion());
-                forceReindex = true;
+            // A new index is built from scratch in place, one of
+            // another version is replaced by a background rebuild.
+            Map<String, String> commitData = index.getCommitData();
+            boolean forceReindex = commitData.get(versionField) == null;
+
+            // Changes applied after the last commit before a restart
+            // were lost with the uncommitted index changes
+            if (firstUpdate) {
+                int lost = indexOutbox.resetApplied();
+                if (lost > 0)
+                    LOG.info("Applying {} uncommitted index changes again.",
+                             lost);
             }
 
-            long skipped = 0;
-            long inLuceneCount = -1;
+            if (forceReindex) {
+                progress.start(getVersion(), countAll());
+                fullUpdate(index, true, stats);
+                progress.finish();
+            } else if (firstUpdate && rebuildIndex == null) {
+                fullUpdate(index, false, stats);
+            }
 
-            List<DiMeData> toIndex = new ArrayList<DiMeData>();
+            drainOutbox(stats);
+
+            // Make sure all changes, also deletes, are visible to
+            // searches before returning.
+            index.waitForChanges();
+
+            // The version is stored with the next commit. A full
+            // reindex is committed right away, otherwise the commit
+            // policy decides when the changes go to disk.
+            commitData = index.getCommitData();
+            if (rebuildIndex == null)
+                commitData.put(versionField, getVersion());
+            index.setCommitData(commitData);
+            if (forceReindex)
+                commit();
+            else
+                maybeCommit();
+
+            stats.log();
+
+            if (rebuildIndex != null && !rebuildStarted) {
+                rebuildStarted = true;
+                reindexer.execute(new Runnable() {
+                        public void run() {
+                            runRebuild();
+                        }
+                    });
+            }
+        } catch (IOException e) {
+            LOG.error("Exception while updating search index: " + e);
+        } finally {
+            firstUpdate = false;
+        }
 
-            if (!forceReindex && !firstUpdate) {
-                // Just use our internal book keeping of new objects
-                toIndex.addAll(infoElemDAO.getNotIndexed());
-                infoElemDAO.clearNotIndexed();
+        return stats.count;
+    }
 
-                toIndex.addAll(eventDAO.getNotIndexed());
-                eventDAO.clearNotIndexed();
-            } else {
-                // Get the set of already indexed ids from Lucene
-                Set<String> inLucene = 
-                    indexedIds(DirectoryReader.open(writer, true));
+    private long countAll() {
+        return infoElemDAO.countAll() + eventDAO.countAll();
+    }
 
-                inLuceneCount = inLucene.size();
+    /**
+       Build the index of the current version from scratch, only
+       called on the reindexer thread. Searches keep using the old
+       index until the new one has caught up and is swapped in on
+       the indexer thread.
+    */
+    private void runRebuild() {
+        IndexingStats stats = new IndexingStats();
+        LOG.info("Rebuilding Lucene index in {}.", rebuildIndex.getPath());
+        try {
+            progress.start(getVersion(), countAll());
+
+            // Changes after this are replayed from the outbox, which
+            // is not purged while the rebuild is in progress
+            fullUpdate(rebuildIndex, true, stats);
+            if (closing)
+                return;
+            stats.log();
+
+            indexer.execute(new Runnable() {
+                    public void run() {
+                        finishRebuild();
+                    }
+                });
+        } catch (IOException | RuntimeException e) {
+            LOG.error("Exception while rebuilding search index: " + e);
+        }
+    }
 
-                // Loop over all elements in the database
-                for (InformationElement elem : infoElemDAO.findAll()) {
-                    // Update those which have not yet been indexed
-                    if (forceReindex || !inLucene.contains(luceneId(elem)))
-                        toIndex.add(elem);
-                }
+    /**
+       Apply the changes made during the rebuild to the new index
+       and start using it, only called on the indexer thread.
+    */
+    private void finishRebuild() {
+        final PartitionedIndex newIndex = rebuildIndex;
+        final IndexingStats stats = new IndexingStats();
+        progress.catchingUp();
+        try {
+            // All entries left in the outbox, applied to the old
+            // index or not, may be missing from the new one
+            List<Long> replayed = new ArrayList<Long>();
+            long lastId = 0;
+            while (true) {
+                final List<IndexOutboxEntry> batch =
+                    indexOutbox.nextBatchAfter(lastId, batchSize);
+                if (batch.isEmpty())
+                    break;
 
-                // Loop over all events in the database
-                for (Event event : eventDAO.findAll()) {
-                    // Update those which have not yet been indexed
-                    if (forceReindex || !inLucene.contains(luceneId(event)))
-                        toIndex.add(event);
-
-                    if (firstUpdate) {
-                        if (event instanceof ResourcedEvent) {
-                            ResourcedEvent re = (ResourcedEvent)event;
-                            InformationElement elem = re.targettedResource;
-                            if (elem.addTargetingEvent(re)) {
-                                targetingEventCount += 1;
-                                eventDAO.save(re);
-                            }
+                inTransaction(new IndexingWork<Void>() {
+                        public Void run() throws IOException {
+                            applyOutboxBatch(newIndex, batch, stats);
+                            return null;
                         }
-                    }
-                }
-            }
+                    });
 
-            Map<String, Long> cHist = new HashMap<String, Long>();
-            Map<String, Long> lHist = new HashMap<String, Long>();
-
-            // create a field that stores term vectors, i.e. tf (idf) values
-            FieldType fieldType = new FieldType();
-            fieldType.setIndexOptions(IndexOptions.DOCS_AND_FREQS_AND_POSITIONS);
-            fieldType.setStored(false);
-            fieldType.setStoreTermVectors(true);
-            fieldType.setTokenized(true);
-
-            long tot = toIndex.size();
-            for (DiMeData obj : toIndex) {
-                if (indexElement(writer, obj, fieldType)) {
-                    count += 1;
-                    String cName = getClassName(obj);
-                    long c = cHist.containsKey(cName) ? cHist.get(cName) : 0;
-                    cHist.put(cName, c + 1);
-
-                    if (obj instanceof InformationElement) {
-                        InformationElement elem = (InformationElement)obj;
-                        if (elem.detectedLanguage == null) {
-                            String lang = detectLanguage(dataContent(elem));
-                            elem.detectedLanguage = lang;
-                            infoElemDAO.save(elem, false);
-
-                            c = lHist.containsKey(lang) ? lHist.get(lang) : 0;
-                            lHist.put(lang, c + 1);
-                        }
-                    }
-                } else {
-                    skipped += 1;
-                }
+                for (IndexOutboxEntry entry : batch)
+                    replayed.add(entry.getId());
+                lastId = batch.get(batch.size() - 1).getId();
             }
 
-            LOG.debug("Writing Lucene index to disk ...");
-
-            Map<String, String> commitData = new HashMap<String, String>();
+            Map<String, String> commitData = newIndex.getCommitData();
+            commitData.remove(reindexField);
             commitData.put(versionField, getVersion());
-            writer.setCommitData(commitData);
-            writer.close();
-
-            LOG.info("Lucene index updated: " +
-                     (inLuceneCount >= 0 ? inLuceneCount + 
-                      " previously indexed, " : "") + 
-                     "added {} new objects, skipped {} objects " +
-                     "with empty content.", count, skipped);
-
-            if (cHist.size() > 0) {
-                LOG.debug("Indexed of different classes:");
-                for (Map.Entry<String, Long> entry : cHist.entrySet()) {
-                    LOG.debug("    {}\t {}", entry.getValue(), entry.getKey());
-                }
-            }
+            newIndex.setCommitData(commitData);
+            newIndex.commit();
+
+            setActiveIndexPath(newIndex.getPath());
+            newIndex.changedAll();
+            PartitionedIndex oldIndex = index;
+            index = newIndex;
+            rebuildIndex = null;
+
+            // Searches still running on the old index keep their
+            // own reference to its reader.
+            oldIndex.close();
+            removeOldIndexes();
+            indexOutbox.remove(replayed);
+            progress.finish();
+            stats.log();
+            LOG.info("Switched to rebuilt Lucene index {}.", newIndex.getPath());
+        } catch (IOException e) {
+            LOG.error("Exception while switching to rebuilt search index: " + e);
+        }
+    }
 
-            if (lHist.size() > 0) {
-                LOG.debug("Languages detected:");
-                for (Map.Entry<String, Long> entry : lHist.entrySet()) {
-                    LOG.debug("    {}\t {}", entry.getValue(), entry.getKey());
-                }
+    /**
+       Index all objects in the database after the high-water mark
+       that are missing from the index, or all objects if
+       forceReindex is set.
+
+       The database is read in chunks ordered by id, each chunk in
+       its own transaction, so memory use is bounded by the chunk
+       size. A forced reindex records its position in the index
+       commit data after each chunk, and resumes from there if it
+       was interrupted.
+    */
+    private void fullUpdate(PartitionedIndex target, boolean forceReindex,
+                            IndexingStats stats)
+        throws IOException
+    {
+        if (!forceReindex) {
+            // Only the objects added since the high-water mark need
+            // to be checked against the index
+            IndexSearcher searcher = target.acquire();
+            try {
+                IndexReader reader = searcher.getIndexReader();
+                IndexedIds indexed = new IndexedIds(reader);
+                stats.previouslyIndexed = reader.numDocs();
+
+                fullUpdate(target, infoElemDAO, IndexOutboxEntry.ELEM,
+                           highWaterMark(target, IndexOutboxEntry.ELEM),
+                           false, indexed, stats);
+                fullUpdate(target, eventDAO, IndexOutboxEntry.EVENT,
+                           highWaterMark(target, IndexOutboxEntry.EVENT),
+                           false, indexed, stats);
+            } finally {
+                target.release(searcher);
             }
+            return;
+        }
 
-            if (targetingEventCount > 0)
-                LOG.debug("Set targetingEvent for {} information elements.", targetingEventCount);
+        String kind = IndexOutboxEntry.ELEM;
+        long afterId = 0;
 
-            for (DiMeData obj : toIndex) {
-                obj = autoGenerateTags(obj);
+        String checkpoint = target.getCommitData().get(reindexField);
+        if (checkpoint != null) {
+            String[] parts = checkpoint.split(":");
+            if (parts.length == 3 && parts[0].equals(getVersion())) {
+                kind = parts[1];
+                afterId = Long.parseLong(parts[2]);
+                LOG.info("Resuming reindexing from {} {}.", kind, afterId);
             }
+        }
 
-        } catch (IOException e) {
-            LOG.error("Exception while updating search index: " + e);
-        } finally {
-            try {
-                if (writer != null)
-                    writer.close();
-            } catch (IOException e) {
-                LOG.error("Exception while closing search index: " + e);
-            } finally {
-                updatingIndex.set(false);
-                firstUpdate = false;
-            }
+        if (kind.equals(IndexOutboxEntry.ELEM)) {
+            fullUpdate(target, infoElemDAO, IndexOutboxEntry.ELEM, afterId,
+                       true, null, stats);
+            afterId = 0;
         }
+        fullUpdate(target, eventDAO, IndexOutboxEntry.EVENT, afterId,
+                   true, null, stats);
 
-        return count;
+        if (!closing) {
+            Map<String, String> commitData = target.getCommitData();
+            commitData.remove(reindexField);
+            target.setCommitData(commitData);
+        }
     }
 
-    /** Auto-generate dumb tags from the Lucene indexing keywords if
-        the object doesn't already have tags.
+    /**
+       Index the objects of one kind, in chunks of ids after the given
+       one.
     */
-    protected DiMeData autoGenerateTags(DiMeData obj) {
-        // skip this if we already have tags
-        if (obj == null || obj.hasTags()) 
-            return obj;
+    private <T extends DiMeData> void fullUpdate(final PartitionedIndex target,
+                                                 final DiMeDAO<T, ?> dao,
+                                                 String kind, long afterId,
+                                                 final boolean forceReindex,
+                                                 final IndexedIds indexed,
+                                                 final IndexingStats stats)
+        throws IOException
+    {
+        if (afterId > 0)
+            LOG.debug("Checking {} objects after id {}.", kind, afterId);
+
+        Long lastId = afterId;
+        while (!closing) {
+            final long chunkStart = lastId;
+            lastId = inTransaction(new IndexingWork<Long>() {
+                    public Long run() throws IOException {
+                        List<T> chunk = dao.findChunk(chunkStart,
+                                                      reindexChunkSize);
+                        if (chunk.isEmpty())
+                            return null;
+
+                        List<DiMeData> toIndex = new ArrayList<DiMeData>();
+                        Set<String> toIndexIds = new HashSet<String>();
+                        Map<String, InformationElement> linked =
+                            new LinkedHashMap<String, InformationElement>();
+                        for (T obj : chunk) {
+                            // Update those which have not yet been indexed
+                            if (forceReindex || !indexed.contains(luceneId(obj))) {
+                                toIndex.add(obj);
+                                toIndexIds.add(luceneId(obj));
+                            }
 
-        List<WeightedKeyword> kw = getKeywords(obj, WeightType.TfIdf);
+                            if (firstUpdate && target == index &&
+                                obj instanceof ResourcedEvent) {
+                                InformationElement elem =
+                                    addTargetingEvent((ResourcedEvent)obj, stats);
+                                if (elem != null)
+                                    linked.put(luceneId(elem), elem);
+                            }
+                        }
 
-        // maybe this object simply has no keywords (probably no text)
-        if (kw == null || kw.size() == 0)
-            return obj;
+                        // The documents of the elements list their
+                        // events, those indexed with this chunk
+                        // already have the new ones
+                        for (Map.Entry<String, InformationElement> e :
+                                 linked.entrySet())
+                            if (!toIndexIds.contains(e.getKey()))
+                                indexOutbox.add(e.getValue(), Op.UPDATE);
+
+                        indexObjects(target, toIndex, stats);
+                        if (forceReindex)
+                            progress.advance(chunk.size());
+                        return chunk.get(chunk.size() - 1).getId();
+                    }
+                });
+
+            if (lastId == null)
+                break;
+
+            raiseHighWaterMark(target, kind, lastId);
+            if (forceReindex) {
+                Map<String, String> commitData = target.getCommitData();
+                commitData.put(reindexField,
+                               getVersion() + ":" + kind + ":" + lastId);
+                target.setCommitData(commitData);
+                if (target == index)
+                    maybeCommit();
+                else
+                    target.maybeCommit();
+            }
+            LOG.debug("Reindexed {} objects up to id {}.", kind, lastId);
+        }
+    }
 
-        Collections.sort(kw, Collections.reverseOrder());
+    /**
+       Make sure the targeted resource of the event knows about it.
+       The document of the event doesn't change, so it is saved
+       without queuing it for indexing.
 
-        int count = 0;
-        Iterator<WeightedKeyword> it = kw.iterator();
-        while (it.hasNext() && count < 10) {
-            WeightedKeyword k = it.next();
-            obj.addTag(new Tag(k.term, true, "DiMe Lucene"));
+       @return the element, if it was linked to the event now
+    */
+    private InformationElement addTargetingEvent(ResourcedEvent re,
+                                                 IndexingStats stats) {
+        InformationElement elem = re.targettedResource;
+        if (elem != null && elem.addTargetingEvent(re)) {
+            stats.targetingEvents += 1;
+            eventDAO.save(re, false);
+            return elem;
+        }
+        return null;
+    }
 
-            if (obj instanceof Event)
-                eventDAO.save((Event)obj);
-            else if (obj instanceof InformationElement)
-                infoElemDAO.save((InformationElement)obj);
+    /**
+       Apply the queued changes from the index outbox in batches,
+       each in its own transaction. The applied entries are marked as
+       such, and removed from the outbox only after they have been
+       committed to the index, see commit().
+    */
+    private void drainOutbox(final IndexingStats stats) throws IOException {
+        while (true) {
+            final List<IndexOutboxEntry> batch =
+                indexOutbox.nextBatch(batchSize);
+            if (batch.isEmpty())
+                break;
+
+            final List<Long> ids = new ArrayList<Long>();
+            for (IndexOutboxEntry entry : batch)
+                ids.add(entry.getId());
+
+            inTransaction(new IndexingWork<Void>() {
+                    public Void run() throws IOException {
+                        applyOutboxBatch(index, batch, stats);
+                        indexOutbox.markApplied(ids);
+                        return null;
+                    }
+                });
 
-            count++;
+            addApplied(ids);
         }
-
-        return obj;
     }
 
-    /** Fetches the Lucene keywords for the given DiMeData object. */
-    public List<WeightedKeyword> getKeywords(DiMeData obj,
-                                             WeightType termWeighting) {
-        if (obj == null)
-            return null;
+    /**
+       Apply one batch of outbox entries to the given index.
+    */
+    private void applyOutboxBatch(PartitionedIndex target,
+                                  List<IndexOutboxEntry> batch,
+                                  IndexingStats stats) throws IOException {
+        // Only the latest change to each object matters
+        Map<String, IndexOutboxEntry> latest =
+            new LinkedHashMap<String, IndexOutboxEntry>();
+        for (IndexOutboxEntry entry : batch) {
+            if (entry.op == Op.DELETE_USER)
+                latest.put("user_" + entry.kind + "_" + entry.userId, entry);
+            else
+                latest.put(luceneId(entry.kind, entry.objectId), entry);
+        }
 
-        try {
-            ensureSearcherAndReader();
+        Set<String> missing = new HashSet<String>();
+        Set<Long> elemIds = new HashSet<Long>();
+        Set<Long> eventIds = new HashSet<Long>();
+        for (Map.Entry<String, IndexOutboxEntry> e : latest.entrySet()) {
+            IndexOutboxEntry entry = e.getValue();
+            if (entry.op == Op.DELETE_USER) {
+                target.deleteUserDocuments(entry.userId,
+                                           userKindQuery(entry.userId,
+                                                         entry.kind));
+            } else if (entry.op == Op.DELETE) {
+                target.deleteDocuments(entry.userId,
+                                       new Term(idField, e.getKey()));
+                stats.deleted += 1;
+            } else {
+                missing.add(e.getKey());
+                if (IndexOutboxEntry.EVENT.equals(entry.kind))
+                    eventIds.add(entry.objectId);
+                else
+                    elemIds.add(entry.objectId);
+            }
+        }
 
-            // create a query to search for the internal id of the document
-            Query idQuery = new TermQuery(new Term(idField, luceneId(obj)));
+        // Load the objects with one query per kind
+        List<DiMeData> toIndex = new ArrayList<DiMeData>();
+        toIndex.addAll(infoElemDAO.findByIds(elemIds));
+        toIndex.addAll(eventDAO.findByIds(eventIds));
+
+        // Objects that have been removed after they were queued
+        for (DiMeData obj : toIndex)
+            missing.remove(luceneId(obj));
+        for (String docId : missing) {
+            target.deleteDocuments(latest.get(docId).userId,
+                                   new Term(idField, docId));
+            stats.deleted += 1;
+        }
 
-            TopDocs hits = searcher.search(idQuery, 1);
+        indexObjects(target, toIndex, stats);
 
-            if (hits.scoreDocs.length > 0)
-                return extractWeightedKeywords(hits.scoreDocs[0].doc, 
-                                               termWeighting);
+        if (!elemIds.isEmpty())
+            raiseHighWaterMark(target, IndexOutboxEntry.ELEM,
+                               Collections.max(elemIds));
+        if (!eventIds.isEmpty())
+            raiseHighWaterMark(target, IndexOutboxEntry.EVENT,
+                               Collections.max(eventIds));
+    }
+
+    /**
+       Query matching all documents of the given kind belonging to a
+       user.
+    */
+    private Query userKindQuery(Long userId, String kind) {
+        BooleanQuery.Builder builder = new BooleanQuery.Builder();
+        builder.add(new TermQuery(new Term(userIdField, userId.toString())),
+                    BooleanClause.Occur.MUST);
+        builder.add(new PrefixQuery(new Term(idField, kind + "_")),
+                    BooleanClause.Occur.MUST);
+        return builder.build();
+    }
+
+    /**
+       Remove documents of objects that no longer exist in the
+       database, e.g. ones deleted before deletes were propagated to
+       the index. Runs on the indexer thread, so it doesn't race with
+       updates.
+
+       @return Number of documents removed
+    */
+    public long purgeOrphans() {
+        Future<Long> purge = indexer.submit(new Callable<Long>() {
+                public Long call() throws IOException {
+                    return runPurgeOrphans();
+                }
+            });
+
+        try {
+            return purge.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            LOG.error("Exception while purging search index: " +
+                      e.getCause());
+        }
+        return 0;
+    }
+
+    private long runPurgeOrphans() throws IOException {
+        final AtomicLong checked = new AtomicLong();
+
+        // One partition at a time, so that the purge doesn't open
+        // the partitions of all users at once
+        long count = index.forEachPartition(new PartitionedIndex.PartitionTask() {
+                public long run(Long userId, IndexSearcher searcher)
+                    throws IOException
+                {
+                    return purgeOrphans(userId, searcher, checked);
+                }
+            });
+
+        if (count > 0)
+            maybeCommit();
+        LOG.info("Checked {} indexed objects, purged {} orphans from the " +
+                 "index.", checked.get(), count);
+        return count;
+    }
+
+    /**
+       Remove the orphans among the documents seen by the searcher,
+       all belonging to the given user unless it is null.
+    */
+    private long purgeOrphans(Long userId, IndexSearcher searcher,
+                              AtomicLong checked)
+        throws IOException
+    {
+        long count = 0;
+        IndexReader reader = searcher.getIndexReader();
+        Terms terms = MultiFields.getTerms(reader, idField);
+        if (terms == null)
+            return 0;
+
+        Bits liveDocs = MultiFields.getLiveDocs(reader);
+        TermsEnum termsEnum = terms.iterator();
+        PostingsEnum postings = null;
+
+        List<String> elemIds = new ArrayList<String>();
+        List<String> eventIds = new ArrayList<String>();
+
+        BytesRef term;
+        while ((term = termsEnum.next()) != null) {
+            // Skip ids whose documents are all deleted already
+            postings = termsEnum.postings(postings, PostingsEnum.NONE);
+            boolean live = false;
+            int doc;
+            while (!live && (doc = postings.nextDoc()) !=
+                   DocIdSetIterator.NO_MORE_DOCS)
+                live = liveDocs == null || liveDocs.get(doc);
+            if (!live)
+                continue;
+
+            String docId = term.utf8ToString();
+            if (docId.startsWith(IndexOutboxEntry.EVENT + "_"))
+                eventIds.add(docId);
+            else
+                elemIds.add(docId);
+            checked.incrementAndGet();
+
+            if (elemIds.size() >= batchSize) {
+                count += purgeMissing(userId, elemIds, infoElemDAO);
+                elemIds.clear();
+            }
+            if (eventIds.size() >= batchSize) {
+                count += purgeMissing(userId, eventIds, eventDAO);
+                eventIds.clear();
+            }
+        }
+        count += purgeMissing(userId, elemIds, infoElemDAO);
+        count += purgeMissing(userId, eventIds, eventDAO);
+        return count;
+    }
+
+    /**
+       Delete the documents whose objects are not found by the DAO,
+       checking all ids with a single query.
+    */
+    private long purgeMissing(Long userId, List<String> docIds,
+                              DiMeDAO<?, ?> dao)
+        throws IOException
+    {
+        Map<Long, String> ids = new HashMap<Long, String>();
+        for (String docId : docIds) {
+            String[] parts = docId.split("_", 2);
+            try {
+                ids.put(Long.parseLong(parts[1], 10), docId);
+            } catch (RuntimeException e) {
+                LOG.error("Bad doc id: " + docId);
+            }
+        }
+
+        ids.keySet().removeAll(dao.existingIds(ids.keySet()));
+        for (String docId : ids.values())
+            index.deleteDocuments(userId, new Term(idField, docId));
+        return ids.size();
+    }
+
+    /**
+       Add the given objects to the index, detect the language of
+       information elements and auto-generate tags for objects
+       without tags. The tags are indexed with the document, and
+       saved to the database in the background. Tags are only
+       generated when indexing into the index in use.
+    */
+    private void indexObjects(final PartitionedIndex target,
+                              List<DiMeData> toIndex, IndexingStats stats)
+        throws IOException
+    {
+        if (toIndex.isEmpty())
+            return;
+
+        // Build the documents here, as the entities may only be
+        // accessed from the thread owning the database session.
+        List<IndexTask> tasks = new ArrayList<IndexTask>();
+        for (DiMeData obj : toIndex) {
+            Document doc = buildDocument(obj, contentFieldType);
+            if (doc == null) {
+                // The object may have been replaced by one without content
+                target.deleteDocuments(userId(obj),
+                                       new Term(idField, luceneId(obj)));
+                stats.skipped += 1;
+                continue;
+            }
+
+            IndexTask task = new IndexTask(userId(obj),
+                                           new Term(idField, luceneId(obj)),
+                                           doc);
+            if (obj instanceof InformationElement) {
+                InformationElement elem = (InformationElement)obj;
+                if (elem.detectedLanguage == null)
+                    task.elem = elem;
+                else
+                    task.language = elem.detectedLanguage;
+            } else if (obj instanceof ResourcedEvent) {
+                // Events are in the language of their element
+                InformationElement elem =
+                    ((ResourcedEvent)obj).targettedResource;
+                if (elem != null)
+                    task.language = elem.detectedLanguage;
+            }
+            if (target == index && !obj.hasTags()) {
+                task.autoTag = true;
+                task.key = docKey(obj);
+            }
+            if (task.elem != null || keywordsPerDoc > 0 || task.autoTag ||
+                !languageAnalyzers.isEmpty())
+                task.content = dataContent(obj);
+            tasks.add(task);
+            stats.countClass(getClassName(obj));
+        }
+
+        // Language detection and analysis are done by the workers,
+        // IndexWriter is thread-safe.
+        int chunkSize = (tasks.size() + indexThreads - 1) / indexThreads;
+        List<Future<Void>> results = new ArrayList<Future<Void>>();
+        for (int i=0; i<tasks.size(); i+=chunkSize) {
+            final List<IndexTask> chunk =
+                tasks.subList(i, Math.min(i + chunkSize, tasks.size()));
+            results.add(indexWorkers.submit(new Callable<Void>() {
+                    public Void call() throws IOException {
+                        // Term statistics of each user for the tags
+                        Map<Long, IndexSearcher> searchers =
+                            new HashMap<Long, IndexSearcher>();
+                        try {
+                            for (IndexTask task : chunk)
+                                indexTask(target, task, searchers);
+                        } finally {
+                            for (IndexSearcher searcher : searchers.values())
+                                target.release(searcher);
+                        }
+                        return null;
+                    }
+                }));
+        }
+
+        try {
+            for (Future<Void> result : results)
+                result.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while indexing", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException)
+                throw (IOException)e.getCause();
+            throw new IOException(e.getCause());
+        }
+
+        // The detected languages are written when the transaction
+        // is flushed, in JDBC batches.
+        for (IndexTask task : tasks) {
+            if (task.elem != null) {
+                task.elem.detectedLanguage = task.language;
+                stats.countLanguage(task.language, task.languageCached,
+                                    task.detectionNanos);
+            }
+        }
+        stats.count += tasks.size();
+
+        // The tags are saved in the background
+        Map<Long, List<String>> tags = new LinkedHashMap<Long, List<String>>();
+        for (IndexTask task : tasks)
+            if (task.autoTags != null && !task.autoTags.isEmpty())
+                tags.put(task.key, task.autoTags);
+        queueTags(tags);
+    }
+
+    /**
+       Analyze and add one document to the index, only called on the
+       index worker threads.
+
+       @param searchers Searchers acquired so far for each user, for
+       the term statistics of the auto-generated tags
+    */
+    private void indexTask(PartitionedIndex target, IndexTask task,
+                           Map<Long, IndexSearcher> searchers)
+        throws IOException
+    {
+        if (task.elem != null)
+            detectLanguage(task);
+        if (task.language != null &&
+            languageAnalyzers.containsKey(task.language)) {
+            task.doc.add(new Field(languageField(task.language),
+                                   task.content, languageFieldType));
+            task.doc.add(new StringField(languageField, task.language,
+                                         Field.Store.NO));
+        }
+
+        CachingTokenFilter tokens = null;
+        if (keywordsPerDoc > 0 || task.autoTag) {
+            // The text is analyzed only once, the indexed field
+            // replays the tokens counted here
+            tokens = new CachingTokenFilter(
+                fieldAnalyzer.tokenStream(textQueryField, task.content));
+            ((Field)task.doc.getField(textQueryField)).setTokenStream(tokens);
+            Map<String, Integer> freqs = termFreqs(tokens);
+            if (keywordsPerDoc > 0)
+                task.doc.add(new BinaryDocValuesField(keywordsField,
+                                                      keywordVector(freqs)));
+            if (task.autoTag) {
+                IndexSearcher searcher = searchers.get(task.userId);
+                if (searcher == null) {
+                    searcher = target.acquire(task.userId);
+                    searchers.put(task.userId, searcher);
+                }
+                task.autoTags = autoGenerateTags(freqs,
+                    termStats(searcher.getIndexReader()));
+                for (String tag : task.autoTags)
+                    Facets.addFacet(task.doc, Facets.TAG, tag, false);
+            }
+        }
+
+        try {
+            target.updateDocument(task.userId, task.idTerm, task.doc);
+        } catch (IOException | RuntimeException e) {
+            // Normally closed by the index writer, the analyzer
+            // can't be used again before it is
+            IOUtils.closeWhileHandlingException(tokens);
+            throw e;
+        }
+    }
+
+    /**
+       Queue auto-generated tags to be saved, and start the tagger
+       thread if it isn't running.
+    */
+    private void queueTags(Map<Long, List<String>> tags) {
+        if (tags.isEmpty())
+            return;
+
+        synchronized (pendingTags) {
+            pendingTags.putAll(tags);
+            if (taggerRunning)
+                return;
+            taggerRunning = true;
+        }
+
+        tagger.execute(new Runnable() {
+                public void run() {
+                    runTagger();
+                }
+            });
+    }
+
+    /**
+       Tag the queued objects batch by batch, no faster than the
+       configured rate. Only called on the tagger thread.
+    */
+    private void runTagger() {
+        Map<Long, List<String>> batch;
+        while ((batch = nextTagBatch(true)) != null) {
+            long startTime = System.currentTimeMillis();
+            tagBatch(batch);
+
+            if (autoTagRate > 0) {
+                long delay = batch.size() * 1000L / autoTagRate -
+                    (System.currentTimeMillis() - startTime);
+                try {
+                    if (delay > 0)
+                        Thread.sleep(delay);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+       Take the next batch of objects to tag from the queue.
+
+       @param tagger True if called from the tagger thread, which
+       stops when the queue is empty
+       @return the tags by object key, or null if none are queued
+    */
+    private Map<Long, List<String>> nextTagBatch(boolean tagger) {
+        synchronized (pendingTags) {
+            if (pendingTags.isEmpty()) {
+                if (tagger)
+                    taggerRunning = false;
+                return null;
+            }
+
+            Map<Long, List<String>> batch =
+                new HashMap<Long, List<String>>();
+            Iterator<Map.Entry<Long, List<String>>> it =
+                pendingTags.entrySet().iterator();
+            while (it.hasNext() && batch.size() < batchSize) {
+                Map.Entry<Long, List<String>> e = it.next();
+                batch.put(e.getKey(), e.getValue());
+                it.remove();
+            }
+            tagsInProgress += batch.size();
+            return batch;
+        }
+    }
+
+    /**
+       Save the auto-generated tags of a batch of objects, in a
+       single transaction with one write per object. The tags are
+       already indexed, so the objects are not queued for
+       reindexing.
+    */
+    private void tagBatch(final Map<Long, List<String>> tags) {
+        try {
+            int count = inTransaction(new IndexingWork<Integer>() {
+                    public Integer run() throws IOException {
+                        Set<Long> elemIds = new HashSet<Long>();
+                        Set<Long> eventIds = new HashSet<Long>();
+                        for (long key : tags.keySet()) {
+                            if (DocKeys.kindOf(key) == DocKeys.EVENT)
+                                eventIds.add(DocKeys.idOf(key));
+                            else
+                                elemIds.add(DocKeys.idOf(key));
+                        }
+
+                        List<DiMeData> objs = new ArrayList<DiMeData>();
+                        objs.addAll(infoElemDAO.findByIds(elemIds));
+                        objs.addAll(eventDAO.findByIds(eventIds));
+
+                        int count = 0;
+                        for (DiMeData obj : objs) {
+                            // Tags given since are kept as they are
+                            if (obj.hasTags())
+                                continue;
+                            for (String tag : tags.get(docKey(obj)))
+                                obj.addTag(new Tag(tag, true, "DiMe Lucene"));
+                            if (obj instanceof Event)
+                                eventDAO.save((Event)obj, false);
+                            else
+                                infoElemDAO.save((InformationElement)obj, false);
+                            count += 1;
+                        }
+                        return count;
+                    }
+                });
+            LOG.debug("Saved auto-generated tags for {} of {} objects.",
+                      count, tags.size());
+        } catch (IOException e) {
+            LOG.error("Exception while generating tags: " + e);
+        } finally {
+            synchronized (pendingTags) {
+                tagsInProgress -= tags.size();
+                pendingTags.notifyAll();
+            }
+        }
+    }
+
+    /**
+       Give auto-generated tags to all queued objects right away, and
+       wait until they have been saved.
+    */
+    public void flushTags() {
+        Map<Long, List<String>> batch;
+        while ((batch = nextTagBatch(false)) != null)
+            tagBatch(batch);
+
+        synchronized (pendingTags) {
+            try {
+                while (tagsInProgress > 0)
+                    pendingTags.wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+       A document to be added to the index by the worker threads.
+    */
+    private static class IndexTask {
+        final Long userId;
+        final Term idTerm;
+        final Document doc;
+
+        // Set if the language of the element needs to be detected
+        InformationElement elem = null;
+        String language = null;
+        boolean languageCached = false;
+        long detectionNanos = 0;
+
+        // Set if needed for language detection, language analysis
+        // or keywords
+        String content = null;
+
+        // Set if the object gets auto-generated tags, with its key
+        boolean autoTag = false;
+        long key;
+        List<String> autoTags = null;
+
+        IndexTask(Long userId, Term idTerm, Document doc) {
+            this.userId = userId;
+            this.idTerm = idTerm;
+            this.doc = doc;
+        }
+    }
+
+    /**
+       Work done on the indexer thread inside a database transaction.
+    */
+    private interface IndexingWork<T> {
+        T run() throws IOException;
+    }
+
+    /**
+       Run the given work in a new read-write transaction, so that
+       lazy associations can be loaded and the changes are flushed
+       when it finishes. The persistence context is discarded at the
+       end, so the loaded entities can be garbage collected.
+    */
+    private <T> T inTransaction(final IndexingWork<T> work)
+        throws IOException
+    {
+        final IOException[] error = new IOException[1];
+        T ret = new TransactionTemplate(transactionManager).execute(
+            new TransactionCallback<T>() {
+                public T doInTransaction(TransactionStatus status) {
+                    try {
+                        return work.run();
+                    } catch (IOException e) {
+                        error[0] = e;
+                        return null;
+                    }
+                }
+            });
+        if (error[0] != null)
+            throw error[0];
+        return ret;
+    }
+
+    /**
+       Counters collected during one index update, for logging.
+    */
+    private static class IndexingStats {
+        final long startTime = System.currentTimeMillis();
+        long count = 0;
+        long skipped = 0;
+        long deleted = 0;
+        long targetingEvents = 0;
+        long previouslyIndexed = -1;
+        Map<String, Long> cHist = new HashMap<String, Long>();
+        Map<String, Long> lHist = new HashMap<String, Long>();
+        long detected = 0;
+        long detectedCached = 0;
+        long detectionNanos = 0;
+
+        void countClass(String cName) {
+            long c = cHist.containsKey(cName) ? cHist.get(cName) : 0;
+            cHist.put(cName, c + 1);
+        }
+
+        void countLanguage(String lang, boolean cached, long nanos) {
+            long c = lHist.containsKey(lang) ? lHist.get(lang) : 0;
+            lHist.put(lang, c + 1);
+            detected += 1;
+            if (cached)
+                detectedCached += 1;
+            detectionNanos += nanos;
+        }
+
+        void log() {
+            LOG.info("Lucene index updated: " +
+                     (previouslyIndexed >= 0 ? previouslyIndexed +
+                      " previously indexed, " : "") +
+                     "added {} new objects, deleted {}, skipped {} objects " +
+                     "with empty content.", count, deleted, skipped);
+
+            long elapsed = System.currentTimeMillis() - startTime;
+            if (count > 0)
+                LOG.info("Indexed {} objects in {} s ({} docs/sec).", count,
+                         String.format("%.1f", elapsed/1000.0),
+                         String.format("%.1f", count*1000.0/Math.max(elapsed, 1)));
+
+            // The detection time is summed over the workers, so this
+            // is the throughput of a single core
+            long detectedNew = detected - detectedCached;
+            if (detected > 0)
+                LOG.info("Detected the language of {} texts ({} cached), " +
+                         "{} texts/sec per core.", detected, detectedCached,
+                         detectedNew > 0 ?
+                         String.format("%.1f", detectedNew*1e9/Math.max(detectionNanos, 1)) :
+                         "-");
+
+            if (cHist.size() > 0) {
+                LOG.debug("Indexed of different classes:");
+                for (Map.Entry<String, Long> entry : cHist.entrySet()) {
+                    LOG.debug("    {}\t {}", entry.getValue(), entry.getKey());
+                }
+            }
+
+            if (lHist.size() > 0) {
+                LOG.debug("Languages detected:");
+                for (Map.Entry<String, Long> entry : lHist.entrySet()) {
+                    LOG.debug("    {}\t {}", entry.getValue(), entry.getKey());
+                }
+            }
+
+            if (targetingEvents > 0)
+                LOG.debug("Set targetingEvent for {} information elements.",
+                          targetingEvents);
+        }
+    }
+
+    /** Auto-generate dumb tags from the terms of an object without
+        tags, the ten terms with the highest tf-idf weight. The
+        object itself is counted in the document frequencies, as it
+        may not be indexed yet.
+
+        @param freqs Term frequencies of the object
+        @param stats Term statistics of the index
+        @return the tags, best first
+    */
+    protected List<String> autoGenerateTags(Map<String, Integer> freqs,
+                                            TermStats stats)
+        throws IOException
+    {
+        List<WeightedKeyword> kw = new ArrayList<WeightedKeyword>();
+        for (Map.Entry<String, Integer> e : freqs.entrySet()) {
+            float idf = similarity.idf(stats.docFreq(e.getKey()) + 1,
+                                       stats.numDocs() + 1);
+            kw.add(new WeightedKeyword(e.getKey(),
+                                       similarity.tf(e.getValue())*idf));
+        }
+
+        Collections.sort(kw, Collections.reverseOrder());
+
+        List<String> tags = new ArrayList<String>();
+        Iterator<WeightedKeyword> it = kw.iterator();
+        while (it.hasNext() && tags.size() < 10)
+            tags.add(it.next().term);
+
+        return tags;
+    }
+
+    /** Fetches the Lucene keywords for the given DiMeData object. */
+    public List<WeightedKeyword> getKeywords(DiMeData obj,
+                                             WeightType termWeighting) {
+        if (obj == null)
+            return null;
+
+        try {
+            IndexSearcher searcher = acquireSearcher(userId(obj));
+            try {
+                IndexReader reader = searcher.getIndexReader();
+                int docId = docKeys.docId(reader, docKey(obj));
+
+                if (docId >= 0)
+                    return extractWeightedKeywords(reader, docId,
+                                                   termWeighting);
+            } finally {
+                releaseSearcher(searcher);
+            }
         } catch (IOException e) {
             // TODO Auto-generated catch block
             e.printStackTrace();
@@ -562,26 +2045,23 @@ public class SearchIndex {
     }
 
     /**
-       Index a single data object.
+       Build the Lucene document of a single data object.
 
-       @param writer IndexWriter to use
        @param obj data object to add
-       @return true if object was added
+       @return the document, or null if the object has no content
     */
-    protected boolean indexElement(IndexWriter writer, DiMeData obj,
-                                   FieldType fieldType)
+    protected Document buildDocument(DiMeData obj, FieldType fieldType)
         throws IOException 
     {
         String content = dataContent(obj);
+        String elemId = luceneId(obj);
 
         if (content == null || content.isEmpty())
-            return false;
-
-        String elemId = luceneId(obj);
+            return null;
 
         String className = getClassName(obj);
         if (className == null)
-            return false;
+            return null;
 
         String objType = "";
         if (obj.type != null)
@@ -590,6 +2070,7 @@ public class SearchIndex {
         Document doc = new Document(); // NOTE: Lucene Document!
 
         doc.add(new StringField(idField, elemId, Field.Store.YES));
+        doc.add(new NumericDocValuesField(DocKeys.keyField, docKey(obj)));
 
         doc.add(new StringField(userIdField, obj.user.getId().toString(), 
                                 Field.Store.YES));
@@ -600,10 +2081,185 @@ public class SearchIndex {
 
         doc.add(new StringField(typeField, objType, Field.Store.YES));
 
-        // doc.add(new LongField("modified", lastModified, Field.Store.NO));
+        addFacets(doc, obj, className, objType);
+        addTimeFields(doc, obj);
+        addDisplayFields(doc, obj);
 
-        writer.updateDocument(new Term(idField, elemId), doc);
-        return true;
+        return doc;
+    }
+
+    /**
+       Add the facet fields counted in searches: class, type, actor,
+       tags and the month of the object.
+    */
+    private void addFacets(Document doc, DiMeData obj, String className,
+                           String objType) {
+        Facets.addFacet(doc, Facets.CLASS, className, true);
+        Facets.addFacet(doc, Facets.TYPE, objType, true);
+
+        Date time = obj.timeCreated;
+        if (obj instanceof Event) {
+            Facets.addFacet(doc, Facets.ACTOR, ((Event)obj).actor, false);
+            time = ((Event)obj).start;
+        }
+
+        if (obj.tags != null) {
+            Set<String> tags = new HashSet<String>();
+            for (Tag tag : obj.tags)
+                if (tag.text != null && tags.add(tag.text))
+                    Facets.addFacet(doc, Facets.TAG, tag.text, false);
+        }
+
+        if (time != null) {
+            Calendar cal = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+            cal.setTime(time);
+            Facets.addFacet(doc, Facets.MONTH,
+                            String.format("%04d-%02d", cal.get(Calendar.YEAR),
+                                          cal.get(Calendar.MONTH) + 1),
+                            false);
+        }
+    }
+
+    /**
+       Add the start and end time of the object: those of events, and
+       the modification time of other objects.
+    */
+    private void addTimeFields(Document doc, DiMeData obj) {
+        Date start, end;
+        if (obj instanceof Event) {
+            start = ((Event)obj).start;
+            end = ((Event)obj).end != null ? ((Event)obj).end : start;
+        } else {
+            start = obj.timeModified != null ? obj.timeModified :
+                obj.timeCreated;
+            end = start;
+        }
+
+        if (start != null) {
+            doc.add(new LongField(startField, start.getTime(), Field.Store.NO));
+            doc.add(new NumericDocValuesField(startField, start.getTime()));
+        }
+        if (end != null) {
+            doc.add(new LongField(endField, end.getTime(), Field.Store.NO));
+            doc.add(new NumericDocValuesField(endField, end.getTime()));
+        }
+    }
+
+    /**
+       Add the stored-only fields needed for light search results:
+       title, uri and time, and references to the linked objects.
+    */
+    private void addDisplayFields(Document doc, DiMeData obj) {
+        InformationElement elem = null;
+        Date time = obj.timeCreated;
+
+        if (obj instanceof InformationElement) {
+            elem = (InformationElement)obj;
+            if (elem.targetingEvents != null)
+                for (Event event : elem.targetingEvents)
+                    doc.add(new StoredField(eventField,
+                                            stubRef(event, event.start)));
+        } else if (obj instanceof Event) {
+            time = ((Event)obj).start;
+            if (obj instanceof ResourcedEvent) {
+                elem = ((ResourcedEvent)obj).targettedResource;
+                if (elem != null)
+                    doc.add(new StoredField(resourceField,
+                                            stubRef(elem, null)));
+            }
+        }
+
+        if (elem != null) {
+            if (elem.title != null)
+                doc.add(new StoredField(titleField, elem.title));
+            if (elem.uri != null)
+                doc.add(new StoredField(uriField, elem.uri));
+        }
+
+        if (time != null)
+            doc.add(new StoredField(timeField, time.getTime()));
+    }
+
+    /**
+       Reference to another object stored in the index, in the form
+       "class_id" or "class_id_time".
+    */
+    private String stubRef(DiMeData obj, Date time) {
+        String ref = getClassName(obj) + "_" + obj.getId();
+        return time != null ? ref + "_" + time.getTime() : ref;
+    }
+
+    /**
+       Create an empty object of the given short class name and id.
+    */
+    private DiMeData makeStub(String className, String id) {
+        try {
+            Class<?> cls = Class.forName(dataClassPrefix + className);
+            if (!DiMeData.class.isAssignableFrom(cls))
+                return null;
+            return DiMeData.makeStub(Long.parseLong(id, 10),
+                                     cls.asSubclass(DiMeData.class));
+        } catch (ClassNotFoundException | NumberFormatException e) {
+            LOG.error("Bad object reference in Lucene index: {} {}",
+                      className, id);
+            return null;
+        }
+    }
+
+    /**
+       Build an object for the light search results from the stored
+       fields of a Lucene document, without touching the database.
+    */
+    private DiMeData storedToObject(Document doc) {
+        String[] idParts = doc.get(idField).split("_", 2);
+        DiMeData obj = makeStub(doc.get(classField), idParts[1]);
+        if (obj == null)
+            return null;
+
+        String objType = doc.get(typeField);
+        if (objType != null && !objType.isEmpty())
+            obj.type = objType;
+
+        IndexableField timeValue = doc.getField(timeField);
+        Date time = timeValue != null ?
+            new Date(timeValue.numericValue().longValue()) : null;
+
+        InformationElement elem = null;
+        if (obj instanceof InformationElement) {
+            elem = (InformationElement)obj;
+            elem.timeCreated = time;
+
+            for (String ref : doc.getValues(eventField)) {
+                String[] parts = ref.split("_");
+                DiMeData event = makeStub(parts[0], parts[1]);
+                if (!(event instanceof Event))
+                    continue;
+                if (parts.length > 2)
+                    ((Event)event).start = new Date(Long.parseLong(parts[2]));
+                if (event instanceof ResourcedEvent)
+                    ((ResourcedEvent)event).targettedResource = elem;
+                elem.addTargetingEvent((Event)event);
+            }
+        } else if (obj instanceof Event) {
+            ((Event)obj).start = time;
+
+            String ref = doc.get(resourceField);
+            if (ref != null && obj instanceof ResourcedEvent) {
+                String[] parts = ref.split("_");
+                DiMeData res = makeStub(parts[0], parts[1]);
+                if (res instanceof InformationElement) {
+                    elem = (InformationElement)res;
+                    ((ResourcedEvent)obj).targettedResource = elem;
+                }
+            }
+        }
+
+        if (elem != null) {
+            elem.title = doc.get(titleField);
+            elem.uri = doc.get(uriField);
+        }
+
+        return obj;
     }
 
     /**
@@ -631,6 +2287,7 @@ public class SearchIndex {
                 // copy the transient members
                 elem.score = data.score;
                 elem.weightedKeywords = data.weightedKeywords;
+                elem.snippets = data.snippets;
 
                 elemList.add(elem);
                 seen.add(elem.getId());
@@ -668,6 +2325,7 @@ public class SearchIndex {
                         
                         // copy the score
                         event.score = data.score;
+                        event.snippets = data.snippets;
                         
                         if (!seen.contains(event.getId())) {
                             events.add(event);
@@ -696,12 +2354,38 @@ public class SearchIndex {
         res.setDocs(mapToEventList(res.getDocs(), user));
     }
 
-    protected List<WeightedKeyword> extractWeightedKeywords(int docId,
+    protected List<WeightedKeyword> extractWeightedKeywords(IndexReader reader,
+                                                            int docId,
                                                             WeightType wt) 
         throws IOException 
     {
-        // specify which similarity is used to compute tf-idf values
-        DefaultSimilarity sim = new DefaultSimilarity();
+        TermStats stats = termStats(reader);
+        List<WeightedKeyword> ret = new ArrayList<WeightedKeyword>();
+
+        // use the keywords stored at indexing time if they include
+        // all terms of the document, as the callers rank all of them
+        BytesRef vector = storedKeywordVector(reader, docId);
+        ByteArrayDataInput in = null;
+        int count = 0;
+        if (vector != null && vector.length > 0) {
+            in = new ByteArrayDataInput(vector.bytes, vector.offset,
+                                        vector.length);
+            int distinct = in.readVInt();
+            count = in.readVInt();
+            if (count < distinct)
+                in = null;
+        }
+
+        if (in != null) {
+            for (int i=0; i<count; i++) {
+                int length = in.readVInt();
+                String term = new BytesRef(vector.bytes, in.getPosition(),
+                                           length).utf8ToString();
+                in.skipBytes(length);
+                ret.add(weightedKeyword(term, in.readVInt(), stats, wt));
+            }
+            return ret;
+        }
 
         // get the terms from the current document
         Terms termVec = reader.getTermVector(docId, textQueryField);
@@ -714,67 +2398,195 @@ public class SearchIndex {
 
         // iterate over all terms of the current document
         BytesRef termText; // term in utf8 encoding
-        String term; // term converted to string
-            
-        List<WeightedKeyword> ret = new ArrayList<WeightedKeyword>();
+        PostingsEnum postings = null;
             
         while ((termText = termsEnum.next()) != null) {
-            PostingsEnum postings=termsEnum.postings(null, PostingsEnum.FREQS);
-            term = termText.utf8ToString();
-            WeightedKeyword wk = null;
-            if (postings.nextDoc() !=  DocIdSetIterator.NO_MORE_DOCS){
-                // postings contain the information about frequencies
-                // sim is used to compute the standard term frequency
-
-                // retrieve idf
-                // get the number of documents with the current term
-                Term termInstance = new Term(textQueryField, termText);
-                int df = reader.docFreq(termInstance);
-
-                // get the number of indexed documents
-                int dc=reader.numDocs();
-                // compute idf
-                float idf = sim.idf(df, dc);
-
-                // fetch tf
-                float tf = sim.tf(postings.freq());
-
-                float w = tf;
-
-                switch(wt) {
-                case Df: 
-                    w = df;
-                    break;
-                case Tf:
-                    w = tf;
-                    break;
-                case Idf:
-                    w = idf;
-                    break;
-                case TfIdf:
-                    w = tf*idf;
-                    break;
-                }
+            postings = termsEnum.postings(postings, PostingsEnum.FREQS);
+            String term = termText.utf8ToString();
+            if (postings.nextDoc() != DocIdSetIterator.NO_MORE_DOCS)
+                ret.add(weightedKeyword(term, postings.freq(), stats, wt));
+            else
+                ret.add(new WeightedKeyword(term, 0));
+        }
+        
+        return ret;
+    }
 
-                wk = new WeightedKeyword(term, w);
-            }
-            else { 
-                wk = new WeightedKeyword(term, 0);
-            }                
+    /**
+       The most characteristic terms of an indexed object, weighted by
+       tf-idf, for finding similar objects. The terms are read from
+       the term vector of the object, and limited by their frequency
+       in it and in the index, and in number.
+
+       @return the terms, best first, or an empty list if the object
+       is not indexed
+    */
+    protected List<WeightedKeyword> similarTerms(IndexReader reader,
+                                                 DiMeData obj)
+        throws IOException
+    {
+        List<WeightedKeyword> ret = new ArrayList<WeightedKeyword>();
+        int docId = docKeys.docId(reader, docKey(obj));
+        if (docId < 0)
+            return ret;
 
-            ret.add(wk);
+        Terms termVec = reader.getTermVector(docId, textQueryField);
+        if (termVec == null)
+            return ret;
+
+        TermStats stats = termStats(reader);
+        long maxDocFreq = (long)stats.numDocs() * similarMaxDocFreq / 100;
+
+        // keep the best terms so far, the worst at the head
+        PriorityQueue<WeightedKeyword> best =
+            new PriorityQueue<WeightedKeyword>(similarMaxTerms + 1);
+
+        TermsEnum termsEnum = termVec.iterator();
+        BytesRef termText;
+        PostingsEnum postings = null;
+        while ((termText = termsEnum.next()) != null) {
+            postings = termsEnum.postings(postings, PostingsEnum.FREQS);
+            if (postings.nextDoc() == DocIdSetIterator.NO_MORE_DOCS ||
+                postings.freq() < similarMinTermFreq)
+                continue;
+
+            String term = termText.utf8ToString();
+            int df = stats.docFreq(term);
+            if (df < similarMinDocFreq || df > maxDocFreq)
+                continue;
+
+            best.add(weightedKeyword(term, postings.freq(), stats,
+                                     WeightType.TfIdf));
+            if (best.size() > similarMaxTerms)
+                best.poll();
         }
-        
+
+        ret.addAll(best);
+        Collections.sort(ret, Collections.reverseOrder());
         return ret;
     }
 
+    /**
+       Weight of a term with the given frequency in a document.
+    */
+    private static WeightedKeyword weightedKeyword(String term, int freq,
+                                                   TermStats stats,
+                                                   WeightType wt)
+        throws IOException
+    {
+        // get the number of documents with the term, and the number
+        // of indexed documents
+        int df = stats.docFreq(term);
+        float idf = similarity.idf(df, stats.numDocs());
+        float tf = similarity.tf(freq);
+
+        float w = tf;
+        switch(wt) {
+        case Df: 
+            w = df;
+            break;
+        case Tf:
+            w = tf;
+            break;
+        case Idf:
+            w = idf;
+            break;
+        case TfIdf:
+            w = tf*idf;
+            break;
+        }
+        return new WeightedKeyword(term, w);
+    }
+
+    /**
+       Document frequencies for the given reader, shared by all
+       requests until the reader is closed.
+    */
+    private TermStats termStats(IndexReader reader) {
+        Object key = reader.getCombinedCoreAndDeletesKey();
+        TermStats stats = termStats.get(key);
+        if (stats == null) {
+            stats = new TermStats(reader, textQueryField);
+            TermStats old = termStats.putIfAbsent(key, stats);
+            if (old != null)
+                return old;
+            reader.addReaderClosedListener(termStatsClosedListener);
+        }
+        return stats;
+    }
+
+    private static BytesRef storedKeywordVector(IndexReader reader, int docId)
+        throws IOException
+    {
+        List<LeafReaderContext> leaves = reader.leaves();
+        LeafReaderContext ctx = leaves.get(ReaderUtil.subIndex(docId, leaves));
+        BinaryDocValues values = ctx.reader().getBinaryDocValues(keywordsField);
+        return values != null ? values.get(docId - ctx.docBase) : null;
+    }
+
+    /**
+       Count the frequencies of the terms of the analyzed text. The
+       stream is left open, to be replayed when the text is indexed.
+    */
+    private Map<String, Integer> termFreqs(CachingTokenFilter ts)
+        throws IOException
+    {
+        Map<String, Integer> freqs = new HashMap<String, Integer>();
+        CharTermAttribute termAtt = ts.addAttribute(CharTermAttribute.class);
+        ts.reset();
+        while (ts.incrementToken()) {
+            String term = termAtt.toString();
+            Integer freq = freqs.get(term);
+            freqs.put(term, freq == null ? 1 : freq + 1);
+        }
+        ts.end();
+        return freqs;
+    }
+
+    /**
+       Encode the most frequent terms of a document with their
+       frequencies, in term order like the term vectors. The number
+       of distinct terms of the document comes first, so that readers
+       can tell whether all of them are included.
+    */
+    private BytesRef keywordVector(final Map<String, Integer> freqs)
+        throws IOException
+    {
+        List<String> terms = new ArrayList<String>(freqs.keySet());
+        if (terms.size() > keywordsPerDoc) {
+            Collections.sort(terms, new Comparator<String>() {
+                    public int compare(String a, String b) {
+                        int c = freqs.get(b) - freqs.get(a);
+                        return c != 0 ? c : a.compareTo(b);
+                    }
+                });
+            terms = terms.subList(0, keywordsPerDoc);
+        }
+
+        List<BytesRef> sorted = new ArrayList<BytesRef>();
+        for (String term : terms)
+            sorted.add(new BytesRef(term));
+        Collections.sort(sorted);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        OutputStreamDataOutput out = new OutputStreamDataOutput(bytes);
+        out.writeVInt(freqs.size());
+        out.writeVInt(sorted.size());
+        for (BytesRef term : sorted) {
+            out.writeVInt(term.length);
+            out.writeBytes(term.bytes, term.offset, term.length);
+            out.writeVInt(freqs.get(term.utf8ToString()));
+        }
+        return new BytesRef(bytes.toByteArray());
+    }
+
     /**
        Extract Lucene query terms for arbitrary string.
 
        @param query Text string
        @return List of weighted keywords
     */
-    public List<WeightedKeyword> queryTerms(String query) 
+    public List<WeightedKeyword> queryTerms(String query)
         throws IOException, SearchQueryException {
         try {
             return extractQueryTerms(basicTextQuery(query));
@@ -783,25 +2595,54 @@ public class SearchIndex {
         }
     }
 
-    private List<WeightedKeyword> extractQueryTerms(Query textQuery) 
-        throws IOException
-    {
-        // extract the terms of a string query
-        Weight w = searcher.createWeight(textQuery, false);
-        TreeSet<Term> textQueryTerms = new TreeSet<Term>();
-        w.extractTerms(textQueryTerms);
+    /**
+       Terms of a parsed query in term order, weighted by their
+       boosts. Prohibited clauses and queries matching several terms,
+       like wildcards, are left out.
+    */
+    private static List<WeightedKeyword> extractQueryTerms(Query textQuery) {
+        Map<Term, Float> terms = new TreeMap<Term, Float>();
+        extractQueryTerms(textQuery, 1.0f, terms);
 
-        // add the terms to query terms
-        Iterator<Term> termsEnum = textQueryTerms.iterator();
         List<WeightedKeyword> queryTerms = new ArrayList<WeightedKeyword>();
-        while (termsEnum.hasNext()){
-            // FIXME: if boosting in string is used, the
-            // weights are not 1
-            queryTerms.add(new WeightedKeyword(termsEnum.next().text(),
-                                               (float) 1));
+        for (Map.Entry<Term, Float> e : terms.entrySet())
+            queryTerms.add(new WeightedKeyword(e.getKey().text(),
+                                               e.getValue()));
+        return queryTerms;
+    }
+
+    private static void extractQueryTerms(Query query, float boost,
+                                          Map<Term, Float> terms) {
+        boost *= query.getBoost();
+
+        if (query instanceof TermQuery) {
+            addQueryTerm(((TermQuery)query).getTerm(), boost, terms);
+        } else if (query instanceof PhraseQuery) {
+            for (Term term : ((PhraseQuery)query).getTerms())
+                addQueryTerm(term, boost, terms);
+        } else if (query instanceof MultiPhraseQuery) {
+            for (Term[] position : ((MultiPhraseQuery)query).getTermArrays())
+                for (Term term : position)
+                    addQueryTerm(term, boost, terms);
+        } else if (query instanceof BooleanQuery) {
+            for (BooleanClause clause : ((BooleanQuery)query).clauses())
+                if (!clause.isProhibited())
+                    extractQueryTerms(clause.getQuery(), boost, terms);
+        } else if (query instanceof DisjunctionMaxQuery) {
+            for (Query disjunct : ((DisjunctionMaxQuery)query).getDisjuncts())
+                extractQueryTerms(disjunct, boost, terms);
+        } else if (query instanceof ConstantScoreQuery) {
+            extractQueryTerms(((ConstantScoreQuery)query).getQuery(), boost,
+                              terms);
         }
+    }
 
-        return queryTerms;
+    private static void addQueryTerm(Term term, float weight,
+                                     Map<Term, Float> terms) {
+        // a term given several times keeps its highest weight
+        Float old = terms.get(term);
+        if (old == null || old < weight)
+            terms.put(term, weight);
     }
 
     /**
@@ -815,32 +2656,307 @@ public class SearchIndex {
                                 String typeName, int limit, Long userId,
                                 WeightType termWeighting)
         throws IOException, SearchQueryException
+    {
+        return search(query, className, typeName, limit, userId,
+                      termWeighting, false);
+    }
+
+    /**
+       Perform text search to Lucene index.
+
+       @param query Query string
+       @param limit Maximum number of results to return
+       @param userId DiMe user id.
+       @param light If true, build light result objects from the
+       fields stored in the index, without accessing the database
+    */
+    public SearchResults search(SearchQuery query, String className,
+                                String typeName, int limit, Long userId,
+                                WeightType termWeighting, boolean light)
+        throws IOException, SearchQueryException
+    {
+        return search(query, className, typeName, limit, userId,
+                      termWeighting, light, new SearchOptions());
+    }
+
+    /**
+       Perform text search to Lucene index, one page at a time.
+
+       @param query Query string
+       @param limit Maximum number of results to return
+       @param userId DiMe user id.
+       @param light If true, build light result objects from the
+       fields stored in the index, without accessing the database
+       @param options Cursor of the previous page of results, as
+       given in SearchResults.nextCursor, facets to count,
+       drill-down and time range filters, recency ranking and
+       snippets
+    */
+    public SearchResults search(final SearchQuery query,
+                                final String className,
+                                final String typeName, int limit,
+                                final Long userId,
+                                final WeightType termWeighting,
+                                final boolean light,
+                                final SearchOptions options)
+        throws IOException, SearchQueryException
     {
         if (limit < 0)
             limit = 100;
+        final int maxHits = limit;
+
+        for (String dim : options.facets)
+            if (!Facets.DIMENSIONS.contains(dim))
+                throw new SearchQueryException("Unknown facet: " + dim);
+        for (String dim : options.drillDown.keySet())
+            if (!Facets.DIMENSIONS.contains(dim))
+                throw new SearchQueryException("Unknown facet: " + dim);
+
+        // Large keyword vectors are cut down before anything else
+        final SearchQuery searchQuery = query instanceof KeywordSearchQuery ?
+            boundedKeywordQuery((KeywordSearchQuery)query) : query;
+
+        // The page size and facets may change between pages
+        final String cursorKey = cacheKey(searchQuery, className, typeName, 0,
+                                          userId, termWeighting, light,
+                                          options);
+        final Cursor after = options.cursor != null ?
+            decodeCursor(options.cursor, cursorKey) : null;
+
+        // Ages are counted from the same time on all pages, and
+        // cached results are reused for a minute
+        final long now = after != null ? after.now :
+            System.currentTimeMillis() / 60000 * 60000;
+        String key = cursorKey + "|" + maxHits + "|" + options.facets +
+            "|" + options.facetLimit + "|" + options.snippets;
+        if (options.recencyHalfLife > 0)
+            key += "|" + now;
+
+        Callable<Hits> search = new Callable<Hits>() {
+            public Hits call() throws IOException, SearchQueryException {
+                return findHits(searchQuery, className, typeName, maxHits, userId,
+                                termWeighting, light, options, after,
+                                cursorKey, now);
+            }
+        };
 
-        SearchResults res = new SearchResults();
+        Hits hits;
+        try {
+            if (resultCache == null || after != null) {
+                hits = search.call();
+            } else {
+                hits = cachedHits(key, userId, search);
+                // The next page needs the searcher of the first one
+                if (hits.nextCursor != null &&
+                    !cursorSearchers.isLive(hits.searcherToken)) {
+                    resultCache.remove(key);
+                    hits = cachedHits(key, userId, search);
+                }
+            }
+        } catch (IOException | SearchQueryException | RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IOException(e);
+        }
 
+        SearchResults res = toResults(hits, userId, options);
+        res.nextCursor = hits.nextCursor;
+        res.facets = hits.facets;
+        return res;
+    }
+
+    private Hits cachedHits(String key, Long userId, Callable<Hits> search)
+        throws Exception
+    {
+        // Read before searching, so that changes made meanwhile make
+        // the entry stale
+        PartitionedIndex current = index;
+        long generation = current.getUserGeneration(userId);
+        boolean searchable = current.isSearchable(userId);
+        return resultCache.get(key, generation, searchable, search);
+    }
+
+    /**
+       Position after the last hit of a page of results, in the
+       searcher kept for the search.
+    */
+    private static class Cursor {
+        long searcherToken;
+        ScoreDoc after;
+        long now;
+    }
+
+    /**
+       Encode a cursor as an opaque string. It includes a hash of the
+       search, so that it is not used for another one.
+    */
+    private static String encodeCursor(long searcherToken, ScoreDoc after,
+                                       long now, String key) {
+        ByteBuffer buf = ByteBuffer.allocate(28);
+        buf.putLong(searcherToken);
+        buf.putInt(after.doc);
+        buf.putFloat(after.score);
+        buf.putLong(now);
+        buf.putInt(key.hashCode());
+        return Base64Utils.encodeToUrlSafeString(buf.array());
+    }
+
+    private Cursor decodeCursor(String cursor, String key)
+        throws SearchQueryException
+    {
+        try {
+            ByteBuffer buf =
+                ByteBuffer.wrap(Base64Utils.decodeFromUrlSafeString(cursor));
+            Cursor c = new Cursor();
+            c.searcherToken = buf.getLong();
+            int doc = buf.getInt();
+            float score = buf.getFloat();
+            c.now = buf.getLong();
+            if (buf.getInt() != key.hashCode() || buf.hasRemaining())
+                throw new SearchQueryException("Cursor is not for this search.");
+            c.after = new ScoreDoc(doc, score);
+            return c;
+        } catch (IllegalArgumentException | BufferUnderflowException e) {
+            throw new SearchQueryException("Invalid cursor: " + cursor);
+        }
+    }
+
+    /**
+       Key of a search in the result cache, with the query normalized.
+    */
+    private static String cacheKey(SearchQuery query, String className,
+                                   String typeName, int limit, Long userId,
+                                   WeightType termWeighting, boolean light,
+                                   SearchOptions options)
+    {
+        StringBuilder key = new StringBuilder();
+        key.append(userId).append('|').append(className).append('|')
+            .append(typeName).append('|').append(limit).append('|')
+            .append(termWeighting).append('|').append(light).append('|')
+            .append(options.drillDown).append('|')
+            .append(time(options.after)).append('|')
+            .append(time(options.before)).append('|')
+            .append(options.recencyHalfLife).append('|');
+
+        if (query instanceof TextSearchQuery) {
+            key.append("text:").append(((TextSearchQuery)query).query
+                                       .trim().replaceAll("\\s+", " "));
+        } else if (query instanceof KeywordSearchQuery) {
+            key.append("keywords:");
+            for (WeightedKeyword kw :
+                     ((KeywordSearchQuery)query).weightedKeywords)
+                key.append(kw.term).append('^').append(kw.weight).append(' ');
+        } else if (query instanceof SimilarSearchQuery) {
+            key.append("similar:")
+                .append(luceneId(((SimilarSearchQuery)query).object));
+        } else {
+            key.append("all");
+        }
+        return key.toString();
+    }
+
+    private static Long time(Date date) {
+        return date != null ? date.getTime() : null;
+    }
+
+    /**
+       Results of a search before fetching the objects, as kept in
+       the result cache.
+    */
+    private static class Hits {
+        List<WeightedKeyword> queryTerms;
+        long[] keys;
+        float[] scores;
+        List<List<WeightedKeyword>> keywords;
+
+        // Stored fields of the hits for light results, otherwise null
+        Document[] stored;
+
+        // Cursor of the next page, and the searcher it refers to
+        String nextCursor;
+        long searcherToken;
+
+        Map<String, Map<String, Long>> facets;
+
+        // Offsets of the query terms in each hit, if snippets were
+        // requested
+        int[][] offsets;
+    }
+
+    private Hits findHits(SearchQuery query, String className,
+                          String typeName, int limit, Long userId,
+                          WeightType termWeighting, boolean light,
+                          SearchOptions options, Cursor after,
+                          String cursorKey, long now)
+        throws IOException, SearchQueryException
+    {
+        Hits res = new Hits();
+
+        // Later pages are searched from the same view of the index
+        IndexSearcher searcher;
+        if (after != null) {
+            searcher = cursorSearchers.acquire(after.searcherToken);
+            if (searcher == null)
+                throw new SearchQueryException("Cursor has expired, " +
+                                               "please search again.");
+        } else {
+            searcher = acquireSearcher(userId);
+        }
         try {
-            ensureSearcherAndReader();
 
             BooleanQuery.Builder queryBuilder = new BooleanQuery.Builder();
 
             Query textQuery = null;
+            List<WeightedKeyword> snippetTerms = null;
 
             if (query instanceof TextSearchQuery) {
                 textQuery = basicTextQuery(((TextSearchQuery)query).query);
 
                 if (termWeighting != WeightType.None)
                     res.queryTerms = extractQueryTerms(textQuery);
+                if (options.snippets > 0)
+                    snippetTerms = res.queryTerms != null ? res.queryTerms :
+                        extractQueryTerms(textQuery);
+
+                // Also match the text analyzed for each language the
+                // user has documents in
+                Set<String> languages =
+                    userLanguages(searcher, userId);
+                if (!languages.isEmpty()) {
+                    List<Query> disjuncts = new ArrayList<Query>();
+                    disjuncts.add(textQuery);
+                    for (String language : languages)
+                        disjuncts.add(languageTextQuery(((TextSearchQuery)query).query,
+                                                        language));
+                    textQuery = new DisjunctionMaxQuery(disjuncts, 0.1f);
+                }
 
             } else if (query instanceof KeywordSearchQuery) {
                 res.queryTerms = ((KeywordSearchQuery)query).weightedKeywords;
                 textQuery = keywordSearchQuery(res.queryTerms);
+                snippetTerms = res.queryTerms;
+            } else if (query instanceof SimilarSearchQuery) {
+                SimilarSearchQuery similar = (SimilarSearchQuery)query;
+                res.queryTerms = similarTerms(searcher.getIndexReader(),
+                                              similar.object);
+                textQuery = keywordSearchQuery(res.queryTerms);
+                snippetTerms = res.queryTerms;
+
+                // left out here rather than from the mapped results,
+                // so that a full page of other objects is found
+                for (DiMeData obj : similar.excluded)
+                    queryBuilder.add(new TermQuery(new Term(idField,
+                                                            luceneId(obj))),
+                                     BooleanClause.Occur.MUST_NOT);
             } else {
                 textQuery = new MatchAllDocsQuery();
             }
 
+            if (options.recencyHalfLife > 0)
+                textQuery = new RecencyQuery(textQuery, endField, now,
+                                             (long)(options.recencyHalfLife *
+                                                    24*60*60*1000));
+
             queryBuilder.add(textQuery, BooleanClause.Occur.MUST);
 
             Query userQuery = new TermQuery(new Term(userIdField,
@@ -855,44 +2971,305 @@ public class SearchIndex {
                 queryBuilder.add(new TermQuery(new Term(typeField, typeName)),
                                  BooleanClause.Occur.FILTER);
 
-            // search for the documents with the query
-            TopDocs results = searcher.search(queryBuilder.build(), limit);
+            for (Map.Entry<String, String> e : options.drillDown.entrySet())
+                queryBuilder.add(new TermQuery(new Term(e.getKey(),
+                                                        e.getValue())),
+                                 BooleanClause.Occur.FILTER);
+
+            // same semantics as the after and before of event queries
+            if (options.after != null)
+                queryBuilder.add(NumericRangeQuery.newLongRange(
+                                     startField, options.after.getTime(), null,
+                                     true, true),
+                                 BooleanClause.Occur.FILTER);
+            if (options.before != null)
+                queryBuilder.add(NumericRangeQuery.newLongRange(
+                                     endField, null, options.before.getTime(),
+                                     true, true),
+                                 BooleanClause.Occur.FILTER);
+
+            // search for the documents with the query, counting the
+            // facets in the same pass
+            TopDocs results;
+            if (!options.facets.isEmpty()) {
+                Facets.Result facetResult =
+                    Facets.search(searcher, queryBuilder.build(),
+                                  after != null ? after.after : null, limit,
+                                  options.facets, options.facetLimit);
+                results = facetResult.topDocs;
+                res.facets = facetResult.counts;
+            } else if (after != null) {
+                results = searcher.searchAfter(after.after,
+                                               queryBuilder.build(), limit);
+            } else {
+                results = searcher.search(queryBuilder.build(), limit);
+            }
             ScoreDoc[] hits = results.scoreDocs;
 
+            if (hits.length > 0 && hits.length == limit &&
+                results.totalHits > hits.length) {
+                res.searcherToken = cursorSearchers.record(searcher);
+                res.nextCursor = encodeCursor(res.searcherToken,
+                                              hits[hits.length-1], now,
+                                              cursorKey);
+            }
+
+            int[] hitDocs = new int[hits.length];
+            res.scores = new float[hits.length];
             for (int i=0; i<hits.length; i++) {
-                Document doc = searcher.doc(hits[i].doc);
-                float score = hits[i].score;
-                String docId = doc.get(idField);
-                try {
-                    DiMeData obj = idToObject(docId);
-                    if (obj == null) {
-                        LOG.error("Bad doc id: "+ docId);
-                    } else if (obj.user.getId().equals(userId)) {
-                        obj.score = score;
-                        obj.weightedKeywords = null;
-                        if (termWeighting != WeightType.None)
-                            obj.weightedKeywords =
-                                extractWeightedKeywords(hits[i].doc,
-                                                        termWeighting);
-                        res.add(obj);
-                    } else {
-                        LOG.warn("Lucene returned result for wrong user: " +
-                                 obj.getId());
-                    }
-                } catch (NumberFormatException ex) {
-                    LOG.error("Lucene returned invalid id: {}", docId);
-                }
+                hitDocs[i] = hits[i].doc;
+                res.scores[i] = hits[i].score;
+            }
+            res.keys = DocKeys.keys(searcher.getIndexReader(), hitDocs);
+
+            if (light) {
+                res.stored = new Document[hits.length];
+                for (int i=0; i<hits.length; i++)
+                    res.stored[i] = searcher.doc(hits[i].doc);
+            }
+
+            if (options.snippets > 0) {
+                List<String> terms = new ArrayList<String>();
+                if (snippetTerms != null)
+                    for (WeightedKeyword kw : snippetTerms)
+                        terms.add(kw.term);
+                res.offsets = new int[hits.length][];
+                for (int i=0; i<hits.length; i++)
+                    res.offsets[i] = Snippets.offsets(searcher.getIndexReader(),
+                                                      hits[i].doc,
+                                                      textQueryField, terms);
+            }
+
+            if (termWeighting != WeightType.None) {
+                res.keywords = new ArrayList<List<WeightedKeyword>>();
+                for (int i=0; i<hits.length; i++)
+                    res.keywords.add(extractWeightedKeywords(searcher.getIndexReader(),
+                                                             hits[i].doc,
+                                                             termWeighting));
             }
         } catch (QueryNodeException e) {
             //LOG.error("Exception: " + e);
             throw new SearchQueryException(e.getMessage());
+        } finally {
+            if (after != null)
+                cursorSearchers.release(searcher);
+            else
+                releaseSearcher(searcher);
+        }
+
+        return res;
+    }
+
+    /**
+       Build the search results from the hits, with new objects each
+       time as the caller may change them.
+    */
+    private SearchResults toResults(Hits hits, Long userId,
+                                    SearchOptions options) {
+        SearchResults res = new SearchResults();
+        res.queryTerms = hits.queryTerms;
+
+        long startTime = System.currentTimeMillis();
+        int numHits = hits.keys.length;
+        DiMeData[] objects = new DiMeData[numHits];
+
+        // fetch the objects in bulk by the keys of the hits, also in
+        // light mode if their text is needed for snippets
+        Map<Long, DiMeData> found = null;
+        if (hits.stored == null || hits.offsets != null)
+            found = keysToObjects(hits.keys, userId);
+
+        if (hits.stored != null) {
+            // build the objects from the stored fields only
+            for (int i=0; i<numHits; i++)
+                objects[i] = storedToObject(hits.stored[i]);
+        } else {
+            for (int i=0; i<numHits; i++)
+                objects[i] = found.get(hits.keys[i]);
+        }
+
+        // add them to the results in score order
+        for (int i=0; i<numHits; i++) {
+            DiMeData obj = objects[i];
+            if (obj == null) {
+                LOG.warn("Bad doc key, or result for wrong user: " +
+                         DocKeys.kindOf(hits.keys[i]) + " " +
+                         DocKeys.idOf(hits.keys[i]));
+                continue;
+            }
+
+            obj.score = hits.scores[i];
+            obj.weightedKeywords = null;
+            if (hits.keywords != null)
+                obj.weightedKeywords = hits.keywords.get(i);
+            if (hits.offsets != null) {
+                DiMeData full = found.get(hits.keys[i]);
+                if (full != null)
+                    obj.snippets = Snippets.fragments(dataContent(full),
+                                                      hits.offsets[i] != null ?
+                                                      hits.offsets[i] :
+                                                      new int[0],
+                                                      options.snippets,
+                                                      options.snippetSize);
+                dropContent(obj);
+            }
+            res.add(obj);
         }
+        LOG.debug("Fetched {} of {} hits from {} in {} ms.",
+                  res.getDocs().size(), numHits,
+                  hits.stored != null ? "index" : "database",
+                  System.currentTimeMillis() - startTime);
 
         return res;
     }
 
+    /**
+       Remove the full text from a search result, when snippets are
+       returned instead.
+    */
+    private static void dropContent(DiMeData obj) {
+        if (obj instanceof ReadingEvent)
+            ((ReadingEvent)obj).plainTextContent = null;
+        if (obj instanceof ResourcedEvent &&
+            ((ResourcedEvent)obj).targettedResource != null)
+            ((ResourcedEvent)obj).targettedResource.plainTextContent = null;
+        if (obj instanceof InformationElement)
+            ((InformationElement)obj).plainTextContent = null;
+    }
+
+    /** Counters of the search result cache, null if it is disabled. */
+    public ResultCache.Stats getResultCacheStats() {
+        return resultCache != null ? resultCache.getStats() : null;
+    }
+
+    /**
+       Parse a query string, using the parsed query from an earlier
+       call for the same string if there is one. The returned query
+       is shared, so it must not be changed.
+    */
     protected Query basicTextQuery(String query) throws QueryNodeException {
-        return this.parser.parse(query, textQueryField);
+        return parseQuery(query, textQueryField, query);
+    }
+
+    /**
+       Parse a query string for the text analyzed for the given
+       language, cached like basicTextQuery().
+    */
+    protected Query languageTextQuery(String query, String language)
+        throws QueryNodeException
+    {
+        return parseQuery(query, languageField(language),
+                          language + '\u0000' + query);
+    }
+
+    private Query parseQuery(String query, String field, String key)
+        throws QueryNodeException
+    {
+        synchronized (parsedQueries) {
+            Query parsed = parsedQueries.get(key);
+            if (parsed != null)
+                return parsed;
+        }
+
+        Query parsed = parser.get().parse(query, field);
+        synchronized (parsedQueries) {
+            parsedQueries.put(key, parsed);
+        }
+        return parsed;
+    }
+
+    /**
+       Languages with their own text field that the user has
+       documents in, cached for each reader.
+    */
+    private Set<String> userLanguages(IndexSearcher searcher, Long userId)
+        throws IOException
+    {
+        IndexReader reader = searcher.getIndexReader();
+        if (languageAnalyzers.isEmpty())
+            return Collections.emptySet();
+
+        Object key = reader.getCombinedCoreAndDeletesKey();
+        Map<Long, Set<String>> users = userLanguages.get(key);
+        if (users == null) {
+            users = new ConcurrentHashMap<Long, Set<String>>();
+            Map<Long, Set<String>> old = userLanguages.putIfAbsent(key, users);
+            if (old != null)
+                users = old;
+            else
+                reader.addReaderClosedListener(userLanguagesClosedListener);
+        }
+
+        Set<String> languages = users.get(userId);
+        if (languages == null) {
+            languages = new TreeSet<String>();
+            Query userQuery = new TermQuery(new Term(userIdField,
+                                                     userId.toString()));
+            for (String language : languageAnalyzers.keySet()) {
+                Query q = new BooleanQuery.Builder()
+                    .add(userQuery, BooleanClause.Occur.FILTER)
+                    .add(new TermQuery(new Term(languageField, language)),
+                         BooleanClause.Occur.FILTER)
+                    .build();
+                if (searcher.search(q, 1).totalHits > 0)
+                    languages.add(language);
+            }
+            users.put(userId, languages);
+        }
+        return languages;
+    }
+
+    /**
+       Bound a keyword query to its most important terms. The
+       keywords are analyzed like the indexed text, so that they match
+       the indexed terms, and duplicates are merged keeping the
+       highest weight. Terms without a positive weight cannot raise
+       the score of a document and are dropped.
+
+       @return query with at most the configured number of terms, by
+       decreasing weight
+    */
+    protected KeywordSearchQuery boundedKeywordQuery(KeywordSearchQuery query)
+        throws IOException
+    {
+        Map<String, Float> weights = new HashMap<String, Float>();
+        for (WeightedKeyword kw : query.weightedKeywords) {
+            if (kw == null || kw.term == null || !(kw.weight > 0))
+                continue;
+
+            try (TokenStream ts = analyzer.tokenStream(textQueryField,
+                                                       kw.term)) {
+                CharTermAttribute termAtt =
+                    ts.addAttribute(CharTermAttribute.class);
+                ts.reset();
+                while (ts.incrementToken()) {
+                    String term = termAtt.toString();
+                    Float w = weights.get(term);
+                    if (w == null || w < kw.weight)
+                        weights.put(term, kw.weight);
+                }
+                ts.end();
+            }
+        }
+
+        List<WeightedKeyword> terms = new ArrayList<WeightedKeyword>();
+        for (Map.Entry<String, Float> e : weights.entrySet())
+            terms.add(new WeightedKeyword(e.getKey(), e.getValue()));
+        Collections.sort(terms, new Comparator<WeightedKeyword>() {
+                public int compare(WeightedKeyword a, WeightedKeyword b) {
+                    int c = Float.compare(b.weight, a.weight);
+                    return c != 0 ? c : a.term.compareTo(b.term);
+                }
+            });
+
+        int maxTerms = Math.min(keywordQueryMaxTerms,
+                                BooleanQuery.getMaxClauseCount());
+        if (terms.size() > maxTerms)
+            terms = new ArrayList<WeightedKeyword>(terms.subList(0, maxTerms));
+
+        KeywordSearchQuery bounded = new KeywordSearchQuery();
+        bounded.weightedKeywords = terms;
+        return bounded;
     }
 
     protected Query keywordSearchQuery(List<WeightedKeyword> weightedKeywords) {
@@ -0,0 +1,76 @@
+/*
+  Copyright (c) 2015-2016 University of Helsinki
+
+  Permission is hereby granted, free of charge, to any person
+  obtaining a copy of this software and associated documentation files
+  (the "Software"), to deal in the Software without restriction,
+  including without limitation the rights to use, copy, modify, merge,
+  publish, distribute, sublicense, and/or sell copies of the Software,
+  and to permit persons to whom the Software is furnished to do so,
+  subject to the following conditions:
+
+  The above copyright notice and this permission notice shall be
+  included in all copies or substantial portions of the Software.
+
+  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+  EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+  MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+  NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+  BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+  ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+  CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+  SOFTWARE.
+*/
+
+package fi.hiit.dime.search;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+//------------------------------------------------------------------------------
+
+/**
+   Optional parameters of a search: paging, facets, drill-down and
+   time range filters, recency ranking and snippets.
+*/
+public class SearchOptions {
+    /** Cursor of the previous page of results, null for the first
+        page. */
+    public String cursor;
+
+    /** Facet dimensions to count over all matching documents. */
+    public List<String> facets = new ArrayList<String>();
+
+    /** Number of values returned per facet dimension. */
+    public int facetLimit = 10;
+
+    /** Facet value required of all results, by dimension. */
+    public Map<String, String> drillDown = new TreeMap<String, String>();
+
+    /** Only objects starting at or after this time, if not null. */
+    public Date after;
+
+    /** Only objects ending at or before this time, if not null. */
+    public Date before;
+
+    /** Half-life in days of the score of older objects, or 0 to rank
+        by relevance only. */
+    public double recencyHalfLife;
+
+    /** Number of snippets returned per hit instead of the full
+        text, or 0 for the full text. */
+    public int snippets;
+
+    /** Approximate length of a snippet in characters. */
+    public int snippetSize = 160;
+
+    /** Require the given facet value of all results, if not null. */
+    public SearchOptions drillDown(String dimension, String value) {
+        if (value != null && !value.isEmpty())
+            drillDown.put(dimension, value);
+        return this;
+    }
+}
@@ -31,6 +31,7 @@ import com.fasterxml.jackson.annotation.JsonInclude;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 
 /** Class for containing search results and metadata. Similar to JSON
     "response" part of Solr.
@@ -45,6 +46,14 @@ public class SearchResults {
 
     public String message;
 
+    /** Cursor for getting the next page of results, null if there
+        are no more. */
+    public String nextCursor;
+
+    /** Number of matching documents per facet value, by facet
+        dimension, if facets were requested. */
+    public Map<String, Map<String, Long>> facets;
+
     public SearchResults() {
         this.docs = new ArrayList<DiMeData>();
     }
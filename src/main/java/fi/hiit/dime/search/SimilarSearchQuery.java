@@ -0,0 +1,78 @@
+/*
+  Copyright (c) 2015-2016 University of Helsinki
+
+  Permission is hereby granted, free of charge, to any person
+  obtaining a copy of this software and associated documentation files
+  (the "Software"), to deal in the Software without restriction,
+  including without limitation the rights to use, copy, modify, merge,
+  publish, distribute, sublicense, and/or sell copies of the Software,
+  and to permit persons to whom the Software is furnished to do so,
+  subject to the following conditions:
+
+  The above copyright notice and this permission notice shall be
+  included in all copies or substantial portions of the Software.
+
+  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+  EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+  MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+  NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+  BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+  ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+  CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+  SOFTWARE.
+*/
+
+package fi.hiit.dime.search;
+
+import fi.hiit.dime.data.DiMeData;
+import fi.hiit.dime.data.Event;
+import fi.hiit.dime.data.InformationElement;
+import fi.hiit.dime.data.ResourcedEvent;
+
+import java.util.ArrayList;
+import java.util.List;
+
+//------------------------------------------------------------------------------
+
+/**
+   Search for objects similar to a given one, by the most
+   characteristic terms of its indexed text.
+*/
+public class SimilarSearchQuery extends SearchQuery {
+    public DiMeData object;
+
+    /**
+       Objects left out of the results: the object itself, and those
+       whose hits are mapped back to it, i.e., the events of an
+       information element and the information element of an event.
+    */
+    public List<DiMeData> excluded = new ArrayList<DiMeData>();
+
+    public SimilarSearchQuery(DiMeData object) {
+        this.object = object;
+        if (object == null)
+            return;
+
+        excluded.add(object);
+        if (object instanceof InformationElement) {
+            List<Event> events = ((InformationElement)object).targetingEvents;
+            if (events != null)
+                excluded.addAll(events);
+        } else if (object instanceof ResourcedEvent) {
+            InformationElement elem = ((ResourcedEvent)object).targettedResource;
+            if (elem != null)
+                excluded.add(elem);
+        }
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return object == null;
+    }
+
+    @Override
+    public String toString() {
+        return "similar to " + (object instanceof Event ? "event " :
+                                "information element ") + object.getId();
+    }
+}
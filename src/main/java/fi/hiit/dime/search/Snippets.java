@@ -0,0 +1,225 @@
+/*
+  Copyright (c) 2015-2016 University of Helsinki
+
+  Permission is hereby granted, free of charge, to any person
+  obtaining a copy of this software and associated documentation files
+  (the "Software"), to deal in the Software without restriction,
+  including without limitation the rights to use, copy, modify, merge,
+  publish, distribute, sublicense, and/or sell copies of the Software,
+  and to permit persons to whom the Software is furnished to do so,
+  subject to the following conditions:
+
+  The above copyright notice and this permission notice shall be
+  included in all copies or substantial portions of the Software.
+
+  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+  EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+  MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+  NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+  BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+  ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+  CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+  SOFTWARE.
+*/
+
+package fi.hiit.dime.search;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.PostingsEnum;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.util.BytesRef;
+import org.springframework.web.util.HtmlUtils;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+   Snippets of search hits: short fragments of the text around the
+   query terms, with the terms highlighted.
+
+   The positions of the terms are read from the offsets stored in the
+   term vector of the document, so the text does not need to be
+   analyzed again.
+*/
+public class Snippets {
+    public static final String HIGHLIGHT_START = "<em>";
+    public static final String HIGHLIGHT_END = "</em>";
+
+    /**
+       Character offsets of the given terms in a document, as a
+       sorted array of start and end offset pairs.
+
+       @return the offsets, or null if the document has no term
+       vector with offsets
+    */
+    public static int[] offsets(IndexReader reader, int docId, String field,
+                                Collection<String> terms)
+        throws IOException
+    {
+        Terms vector = reader.getTermVector(docId, field);
+        if (vector == null || !vector.hasOffsets())
+            return null;
+
+        List<int[]> spans = new ArrayList<int[]>();
+        TermsEnum termsEnum = vector.iterator();
+        PostingsEnum postings = null;
+        for (String term : terms) {
+            if (!termsEnum.seekExact(new BytesRef(term)))
+                continue;
+
+            postings = termsEnum.postings(postings, PostingsEnum.OFFSETS);
+            postings.nextDoc();
+            for (int i=0; i<postings.freq(); i++) {
+                postings.nextPosition();
+                spans.add(new int[] { postings.startOffset(),
+                                      postings.endOffset() });
+            }
+        }
+
+        Collections.sort(spans, new Comparator<int[]>() {
+                public int compare(int[] a, int[] b) {
+                    return Integer.compare(a[0], b[0]);
+                }
+            });
+
+        int[] offsets = new int[2*spans.size()];
+        for (int i=0; i<spans.size(); i++) {
+            offsets[2*i] = spans.get(i)[0];
+            offsets[2*i+1] = spans.get(i)[1];
+        }
+        return offsets;
+    }
+
+    /**
+       Build the best fragments of a text, i.e. those with the most
+       matching terms, best first. The text is HTML-escaped and the
+       terms are highlighted. If no terms match, the beginning of the
+       text is returned.
+
+       @param text The text from which the offsets were indexed
+       @param offsets Matches as returned by offsets()
+       @param maxFragments Maximum number of fragments
+       @param fragmentSize Approximate length of a fragment in characters
+    */
+    public static List<String> fragments(String text, int[] offsets,
+                                         int maxFragments, int fragmentSize)
+    {
+        List<String> res = new ArrayList<String>();
+        if (text == null || text.isEmpty() || maxFragments <= 0)
+            return res;
+
+        // The text may have changed since it was indexed
+        int numMatches = 0;
+        while (numMatches < offsets.length/2 &&
+               offsets[2*numMatches+1] <= text.length())
+            numMatches++;
+        offsets = Arrays.copyOf(offsets, 2*numMatches);
+
+        if (numMatches == 0) {
+            res.add(fragment(text, offsets, 0, fragmentSize));
+            return res;
+        }
+
+        // Candidate fragments start a bit before each match
+        final int[] starts = new int[numMatches];
+        final int[] counts = new int[numMatches];
+        Integer[] order = new Integer[numMatches];
+        for (int i=0; i<numMatches; i++) {
+            starts[i] = Math.max(0, offsets[2*i] - fragmentSize/4);
+            int end = starts[i] + fragmentSize;
+            for (int j=i; j<numMatches && offsets[2*j+1] <= end; j++)
+                counts[i]++;
+            order[i] = i;
+        }
+
+        Arrays.sort(order, new Comparator<Integer>() {
+                public int compare(Integer a, Integer b) {
+                    if (counts[a] != counts[b])
+                        return Integer.compare(counts[b], counts[a]);
+                    return Integer.compare(a, b);
+                }
+            });
+
+        List<Integer> chosen = new ArrayList<Integer>();
+        for (int i=0; i<numMatches && chosen.size() < maxFragments; i++) {
+            int start = starts[order[i]];
+            boolean overlaps = false;
+            for (int c : chosen)
+                if (Math.abs(start - c) < fragmentSize)
+                    overlaps = true;
+            if (!overlaps)
+                chosen.add(start);
+        }
+
+        for (int start : chosen)
+            res.add(fragment(text, offsets, start, fragmentSize));
+        return res;
+    }
+
+    /**
+       A single fragment of the text, trimmed to word boundaries and
+       with whitespace collapsed.
+    */
+    private static String fragment(String text, int[] offsets, int start,
+                                   int fragmentSize) {
+        int end = Math.min(text.length(), start + fragmentSize);
+
+        if (start > 0) {
+            int space = indexOfWhitespace(text, start, end);
+            if (space >= 0 && !startsInside(offsets, start, space))
+                start = space + 1;
+        }
+        if (end < text.length()) {
+            int space = lastIndexOfWhitespace(text, start, end);
+            if (space > start)
+                end = space;
+        }
+
+        StringBuilder sb = new StringBuilder();
+        int pos = start;
+        for (int i=0; i<offsets.length; i+=2) {
+            int s = offsets[i], e = offsets[i+1];
+            if (s < pos || e > end)
+                continue;
+            sb.append(escape(text.substring(pos, s)))
+                .append(HIGHLIGHT_START)
+                .append(escape(text.substring(s, e)))
+                .append(HIGHLIGHT_END);
+            pos = e;
+        }
+        sb.append(escape(text.substring(pos, end)));
+        return sb.toString().trim();
+    }
+
+    /** True if a match starts between the two positions. */
+    private static boolean startsInside(int[] offsets, int from, int to) {
+        for (int i=0; i<offsets.length; i+=2)
+            if (offsets[i] >= from && offsets[i] < to)
+                return true;
+        return false;
+    }
+
+    private static int indexOfWhitespace(String text, int from, int to) {
+        for (int i=from; i<to; i++)
+            if (Character.isWhitespace(text.charAt(i)))
+                return i;
+        return -1;
+    }
+
+    private static int lastIndexOfWhitespace(String text, int from, int to) {
+        for (int i=to; i>from; i--)
+            if (Character.isWhitespace(text.charAt(i)))
+                return i;
+        return -1;
+    }
+
+    private static String escape(String text) {
+        return HtmlUtils.htmlEscape(text.replaceAll("\\s+", " "));
+    }
+}
@@ -0,0 +1,67 @@
+/*
+  Copyright (c) 2015-2016 University of Helsinki
+
+  Permission is hereby granted, free of charge, to any person
+  obtaining a copy of this software and associated documentation files
+  (the "Software"), to deal in the Software without restriction,
+  including without limitation the rights to use, copy, modify, merge,
+  publish, distribute, sublicense, and/or sell copies of the Software,
+  and to permit persons to whom the Software is furnished to do so,
+  subject to the following conditions:
+
+  The above copyright notice and this permission notice shall be
+  included in all copies or substantial portions of the Software.
+
+  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+  EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+  MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+  NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+  BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+  ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+  CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+  SOFTWARE.
+*/
+
+package fi.hiit.dime.search;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.Term;
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+   Document frequencies of the terms of one field, cached for the
+   lifetime of an index reader. A reader never changes, so the
+   values stay valid until searches move on to a newer reader.
+*/
+public class TermStats {
+    // Stop caching new terms after this many
+    private static final int maxTerms = 200000;
+
+    private final IndexReader reader;
+    private final String field;
+    private final int numDocs;
+    private final ConcurrentHashMap<String, Integer> docFreqs =
+        new ConcurrentHashMap<String, Integer>();
+
+    public TermStats(IndexReader reader, String field) {
+        this.reader = reader;
+        this.field = field;
+        this.numDocs = reader.numDocs();
+    }
+
+    public int numDocs() {
+        return numDocs;
+    }
+
+    public int docFreq(String term) throws IOException {
+        Integer df = docFreqs.get(term);
+        if (df == null) {
+            df = reader.docFreq(new Term(field, term));
+            if (docFreqs.size() < maxTerms)
+                docFreqs.put(term, df);
+        }
+        return df;
+    }
+}
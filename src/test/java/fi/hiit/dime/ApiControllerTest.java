@@ -28,6 +28,7 @@ import static org.junit.Assert.*;
 import static fi.hiit.dime.data.DiMeData.makeStub;
 
 import fi.hiit.dime.ApiController.ApiMessage;
+import fi.hiit.dime.authentication.User;
 import fi.hiit.dime.data.DiMeData;
 import fi.hiit.dime.data.Document;
 import fi.hiit.dime.data.Event;
@@ -44,31 +45,71 @@ import fi.hiit.dime.data.ResourcedEvent;
 import fi.hiit.dime.data.ScientificDocument;
 import fi.hiit.dime.data.SearchEvent;
 import fi.hiit.dime.data.Tag;
+import fi.hiit.dime.database.EventDAO;
+import fi.hiit.dime.database.InformationElementDAO;
 import fi.hiit.dime.search.KeywordSearchQuery;
+import fi.hiit.dime.search.ReindexProgress;
 import fi.hiit.dime.search.SearchIndex;
 import fi.hiit.dime.search.SearchResults;
+import fi.hiit.dime.search.WeightedKeyword;
 import fi.hiit.dime.util.RandomPassword;
 
+import org.junit.Assume;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.config.AutowireCapableBeanFactory;
 import org.springframework.http.ResponseEntity;
 import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
-
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallbackWithoutResult;
+import org.springframework.transaction.support.TransactionTemplate;
+import org.springframework.util.FileSystemUtils;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TimeZone;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 /**
  * @author Mats Sjöberg (mats.sjoberg@helsinki.fi)
  */
 @RunWith(SpringJUnit4ClassRunner.class)
 public class ApiControllerTest extends RestTest {
+    private static final Logger LOG =
+        LoggerFactory.getLogger(ApiControllerTest.class);
+
     @Autowired
     SearchIndex searchIndex;
 
+    @Autowired
+    InformationElementDAO infoElemDAO;
+
+    @Autowired
+    EventDAO eventDAO;
+
+    @Autowired
+    AutowireCapableBeanFactory beanFactory;
+
+    @Autowired
+    PlatformTransactionManager transactionManager;
+
+    @Autowired
+    DiMeProperties config;
+
     @Test
     public void testPing() throws Exception {
         ResponseEntity<ApiMessage> res =
@@ -78,6 +119,249 @@ public class ApiControllerTest extends RestTest {
         assertEquals(res.getBody().message, "pong");
     }
 
+    @Test
+    public void testReindexStatus() throws Exception {
+        // Only for admin users
+        ApiError error = getDataExpectError(apiUrl("/reindexstatus"));
+        assertEquals(401, (int)error.status);
+
+        searchIndex.updateIndex();
+        ReindexProgress progress = searchIndex.getReindexProgress();
+        assertTrue(progress.state == ReindexProgress.State.IDLE ||
+                   progress.state == ReindexProgress.State.DONE);
+
+        // Tagged, so that no auto-generated tags are saved meanwhile
+        int numDocs = 3;
+        for (int i=0; i<numDocs; i++) {
+            ScientificDocument doc = createScientificDocument("Reindexed " + i);
+            doc.addTag(new Tag("reindextag"));
+            uploadElement(doc, ScientificDocument.class);
+        }
+
+        // Leave the shared outbox empty for the second index
+        searchIndex.updateIndex();
+        searchIndex.commit();
+
+        // A new index in an empty directory is fully reindexed
+        long total = infoElemDAO.countAll() + eventDAO.countAll();
+        assertTrue(total >= numDocs);
+
+        File indexPath = Files.createTempDirectory("dime-reindex").toFile();
+        DiMeProperties reindexConfig = new DiMeProperties();
+        reindexConfig.setLuceneIndexPath(indexPath.getPath());
+        SearchIndex reindexed = new SearchIndex(reindexConfig);
+        try {
+            beanFactory.autowireBean(reindexed);
+            assertEquals(ReindexProgress.State.IDLE,
+                         reindexed.getReindexProgress().state);
+
+            reindexed.updateIndex();
+
+            progress = reindexed.getReindexProgress();
+            assertEquals(ReindexProgress.State.DONE, progress.state);
+            assertNotNull(progress.version);
+            assertEquals(total, progress.total);
+            assertEquals(total, progress.done);
+            assertNotNull(progress.started);
+            assertNotNull(progress.finished);
+            assertNull(progress.etaSeconds);
+        } finally {
+            reindexed.close();
+            FileSystemUtils.deleteRecursively(indexPath);
+        }
+    }
+
+    @Test
+    public void testSearchCache() throws Exception {
+        // Only for admin users
+        ApiError error = getDataExpectError(apiUrl("/searchcachestatus"));
+        assertEquals(401, (int)error.status);
+
+        final String magicWord = "cachedmagicword";
+
+        MessageEvent event = new MessageEvent();
+        event.targettedResource = createTestEmail("First " + magicWord, "Hello");
+        uploadEvents(new Event[] { event }, Event[].class);
+
+        SearchResults res = doSearch(magicWord);
+        assertEquals(1, res.getDocs().size());
+
+        // The same search again comes from the cache
+        long hits = searchIndex.getResultCacheStats().hits;
+        SearchResults cached = getData(apiUrl("/search?query=" + magicWord),
+                                       SearchResults.class);
+        assertEquals(1, cached.getDocs().size());
+        assertEquals(res.getDocs().get(0).getId(),
+                     cached.getDocs().get(0).getId());
+        assertEquals(hits + 1, searchIndex.getResultCacheStats().hits);
+
+        // New data invalidates it
+        MessageEvent event2 = new MessageEvent();
+        event2.targettedResource = createTestEmail("Second " + magicWord,
+                                                   "Hello again");
+        uploadEvents(new Event[] { event2 }, Event[].class);
+
+        res = doSearch(magicWord);
+        assertEquals(2, res.getDocs().size());
+    }
+
+    @Test
+    public void testQueryTerms() throws Exception {
+        List<WeightedKeyword> terms =
+            searchIndex.queryTerms("foo^2 Bar -baz \"qux quux\"^0.5");
+
+        assertEquals(4, terms.size());
+        assertEquals(new WeightedKeyword("bar", 1.0f), terms.get(0));
+        assertEquals(new WeightedKeyword("foo", 2.0f), terms.get(1));
+        assertEquals(new WeightedKeyword("quux", 0.5f), terms.get(2));
+        assertEquals(new WeightedKeyword("qux", 0.5f), terms.get(3));
+
+        // The parsed query is reused
+        assertEquals(terms, searchIndex.queryTerms("foo^2 Bar -baz \"qux quux\"^0.5"));
+    }
+
+    @Test
+    public void testSearchPaging() throws Exception {
+        final String magicWord = "pagedmagicword";
+
+        int numEvents = 5;
+        Event[] events = new Event[numEvents];
+        for (int i=0; i<numEvents; i++) {
+            MessageEvent event = new MessageEvent();
+            event.targettedResource = createTestEmail("Message " + i + " " +
+                                                      magicWord, "Page " + i);
+            events[i] = event;
+        }
+        uploadEvents(events, Event[].class);
+
+        SearchResults page = getData(apiUrl("/search?updateIndex=true&limit=2&query=" +
+                                            magicWord), SearchResults.class);
+        Set<Long> found = new HashSet<Long>();
+        int numPages = 0;
+        while (true) {
+            numPages++;
+            for (DiMeData obj : page.getDocs())
+                assertTrue(found.add(obj.getId()));
+            if (page.nextCursor == null)
+                break;
+            page = getData(apiUrl("/search?limit=2&query=" + magicWord +
+                                  "&cursor=" + page.nextCursor),
+                           SearchResults.class);
+        }
+        assertEquals(numEvents, found.size());
+        assertEquals(3, numPages);
+
+        // A cursor is only valid for the same search
+        SearchResults first = getData(apiUrl("/search?limit=2&query=" + magicWord),
+                                      SearchResults.class);
+        assertNotNull(first.nextCursor);
+        ResponseEntity<SearchResults> res =
+            getRest().getForEntity(apiUrl("/search?limit=2&query=other" +
+                                          "&cursor=" + first.nextCursor),
+                                   SearchResults.class);
+        assertClientError(res);
+    }
+
+    @Test
+    public void testSearchFacets() throws Exception {
+        final String magicWord = "facetmagicword";
+
+        Event[] events = new Event[5];
+        for (int i=0; i<3; i++) {
+            SearchEvent searchEvent = new SearchEvent();
+            searchEvent.query = magicWord + " " + i;
+            searchEvent.actor = i < 2 ? "facetAppA" : "facetAppB";
+            events[i] = searchEvent;
+        }
+        for (int i=3; i<5; i++) {
+            MessageEvent event = new MessageEvent();
+            event.targettedResource = createTestEmail("Message " + magicWord,
+                                                      "Facets " + i);
+            if (i == 3)
+                event.targettedResource.addTag(new Tag("facettag"));
+            events[i] = event;
+        }
+        uploadEvents(events, Event[].class);
+
+        String url = "/search?updateIndex=true&query=" + magicWord +
+            "&facets=@type,actor,tag";
+        SearchResults res = getData(apiUrl(url), SearchResults.class);
+
+        Map<String, Map<String, Long>> facets = res.facets;
+        assertNotNull(facets);
+        assertEquals(3, (long)facets.get("@type").get("SearchEvent"));
+        assertEquals(2, (long)facets.get("@type").get("Message"));
+        assertEquals(2, (long)facets.get("actor").get("facetAppA"));
+        assertEquals(1, (long)facets.get("actor").get("facetAppB"));
+        assertEquals(1, (long)facets.get("tag").get("facettag"));
+        // Auto-generated tags are counted from the first indexing
+        assertTrue(facets.get("tag").size() > 1);
+
+        // Drill down to one facet value
+        res = getData(apiUrl(url + "&actor=facetAppB"), SearchResults.class);
+        assertEquals(1, res.facets.get("@type").size());
+        assertEquals(1, (long)res.facets.get("@type").get("SearchEvent"));
+
+        res = getData(apiUrl(url + "&tag=facettag"), SearchResults.class);
+        assertEquals(1, (long)res.facets.get("@type").get("Message"));
+
+        // Facets are only returned when asked for
+        res = doSearch(magicWord);
+        assertNull(res.facets);
+    }
+
+    @Test
+    public void testSearchTimeRange() throws Exception {
+        final String magicWord = "timemagicword";
+        final long day = 24*60*60*1000L;
+        long now = System.currentTimeMillis();
+
+        // The oldest event is the most relevant one
+        int[] ages = { 30, 10, 1 };
+        SearchEvent[] events = new SearchEvent[ages.length];
+        for (int i=0; i<ages.length; i++) {
+            events[i] = new SearchEvent();
+            events[i].query = i == 0 ? magicWord + " " + magicWord :
+                magicWord + " other";
+            events[i].start = new Date(now - ages[i]*day);
+        }
+        SearchEvent[] uploaded = uploadEvents(events, SearchEvent[].class);
+
+        DateFormat df = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'");
+        df.setTimeZone(TimeZone.getTimeZone("UTC"));
+
+        String url = "/eventsearch?updateIndex=true&query=" + magicWord;
+        SearchResults res = getData(apiUrl(url), SearchResults.class);
+        assertEquals(3, res.getDocs().size());
+        assertEquals(uploaded[0].getId(), res.getDocs().get(0).getId());
+
+        // Recent objects first
+        res = getData(apiUrl(url + "&recency=1"), SearchResults.class);
+        assertEquals(3, res.getDocs().size());
+        assertEquals(uploaded[2].getId(), res.getDocs().get(0).getId());
+        assertEquals(uploaded[0].getId(), res.getDocs().get(2).getId());
+
+        // Time range filters
+        String week = df.format(new Date(now - 7*day));
+        res = getData(apiUrl(url + "&after=" + week), SearchResults.class);
+        assertEquals(1, res.getDocs().size());
+        assertEquals(uploaded[2].getId(), res.getDocs().get(0).getId());
+
+        res = getData(apiUrl(url + "&before=" + week), SearchResults.class);
+        assertEquals(2, res.getDocs().size());
+
+        String month = df.format(new Date(now - 20*day));
+        res = getData(apiUrl(url + "&after=" + month + "&before=" + week),
+                      SearchResults.class);
+        assertEquals(1, res.getDocs().size());
+        assertEquals(uploaded[1].getId(), res.getDocs().get(0).getId());
+
+        ResponseEntity<SearchResults> bad =
+            getRest().getForEntity(apiUrl(url + "&after=yesterday"),
+                                   SearchResults.class);
+        assertClientError(bad);
+    }
+
     @Test
     public void testEmptySearch() throws Exception {
         SearchResults res = doSearch("");
@@ -263,6 +547,274 @@ public class ApiControllerTest extends RestTest {
         
     }
 
+    @Test
+    public void testLightSearch() throws Exception {
+        String magicText = "lightsearchbaz";
+        ScientificDocument doc = createScientificDocument(magicText);
+        ReadingEvent re = createReadingEvent(doc, "Some reading text.");
+        ReadingEvent uploadedEvent = uploadEvent(re, ReadingEvent.class);
+
+        SearchResults searchRes =
+            getData(apiUrl("/search?updateIndex=true&light=true&query=" +
+                           magicText), SearchResults.class);
+
+        assertEquals(1, searchRes.getDocs().size());
+        assertTrue(searchRes.getDocs().get(0) instanceof ScientificDocument);
+
+        ScientificDocument resDoc =
+            (ScientificDocument)searchRes.getDocs().get(0);
+        assertEquals(uploadedEvent.targettedResource.getId(), resDoc.getId());
+        assertEquals(doc.title, resDoc.title);
+        assertEquals(doc.uri, resDoc.uri);
+        assertEquals(doc.type, resDoc.type);
+        assertTrue(resDoc.score != null);
+        assertTrue(resDoc.plainTextContent == null);
+
+        SearchResults eventRes =
+            getData(apiUrl("/eventsearch?light=true&query=" + magicText),
+                    SearchResults.class);
+
+        assertEquals(1, eventRes.getDocs().size());
+        assertTrue(eventRes.getDocs().get(0) instanceof ReadingEvent);
+
+        ReadingEvent resEvent = (ReadingEvent)eventRes.getDocs().get(0);
+        assertEquals(uploadedEvent.getId(), resEvent.getId());
+        assertEquals(uploadedEvent.start, resEvent.start);
+        assertEquals(doc.title, resEvent.targettedResource.title);
+        assertTrue(resEvent.plainTextContent == null);
+    }
+
+    @Test
+    public void testSearchSnippets() throws Exception {
+        String magicText = "snippetmagicword";
+        StringBuilder text = new StringBuilder();
+        for (int i=0; i<200; i++)
+            text.append(i == 100 ? magicText : "filler").append(' ');
+        text.append("<b>").append(magicText).append("</b> at the end.");
+
+        ScientificDocument doc = createScientificDocument(text.toString());
+        ReadingEvent re = createReadingEvent(doc, "Some reading text.");
+        ReadingEvent uploadedEvent = uploadEvent(re, ReadingEvent.class);
+
+        SearchResults res =
+            getData(apiUrl("/search?updateIndex=true&snippets=2&query=" +
+                           magicText), SearchResults.class);
+
+        assertEquals(1, res.getDocs().size());
+        ScientificDocument resDoc = (ScientificDocument)res.getDocs().get(0);
+        assertEquals(uploadedEvent.targettedResource.getId(), resDoc.getId());
+        assertNull(resDoc.plainTextContent);
+
+        assertEquals(2, resDoc.snippets.size());
+        for (String snippet : resDoc.snippets) {
+            assertTrue(snippet, snippet.contains("<em>" + magicText + "</em>"));
+            assertTrue(snippet, snippet.length() < 300);
+        }
+        assertTrue(resDoc.snippets.get(1).contains("&lt;b&gt;<em>" +
+                                                   magicText + "</em>") ||
+                   resDoc.snippets.get(0).contains("&lt;b&gt;<em>" +
+                                                   magicText + "</em>"));
+
+        // Light results and events get snippets too
+        res = getData(apiUrl("/eventsearch?light=true&snippets=1&query=" +
+                             magicText), SearchResults.class);
+        assertEquals(1, res.getDocs().size());
+        assertEquals(1, res.getDocs().get(0).snippets.size());
+
+        // Without snippets the full text is returned
+        res = doSearch(magicText);
+        resDoc = (ScientificDocument)res.getDocs().get(0);
+        assertNull(resDoc.snippets);
+        assertEquals(doc.plainTextContent, resDoc.plainTextContent);
+    }
+
+    @Test
+    public void testSimilar() throws Exception {
+        // Each shared term is in at most half of the fixture, so it
+        // is used whatever else is in the index
+        String[] texts = {
+            "simapple simbanana simcherry simapple simbanana",
+            "simapple simbanana simcherry other",
+            "simapple words",
+            "simdurian here",
+            "simdurian there",
+            "nothing in common",
+        };
+        ReadingEvent[] events = new ReadingEvent[texts.length];
+        for (int i=0; i<texts.length; i++) {
+            ScientificDocument doc = createScientificDocument(texts[i]);
+            doc.title = "simtitle" + i;
+            events[i] = uploadEvent(createReadingEvent(doc, texts[i]),
+                                    ReadingEvent.class);
+        }
+
+        Long docId = events[0].targettedResource.getId();
+        SearchResults res =
+            getData(apiUrl("/similar/informationelement/" + docId +
+                           "?updateIndex=true"), SearchResults.class);
+
+        // The most similar first, not the object itself
+        assertEquals(2, res.getDocs().size());
+        assertEquals(events[1].targettedResource.getId(),
+                     res.getDocs().get(0).getId());
+        assertEquals(events[2].targettedResource.getId(),
+                     res.getDocs().get(1).getId());
+
+        // The reading event of the object doesn't take up the limit
+        res = getData(apiUrl("/similar/informationelement/" + docId +
+                             "?limit=1"), SearchResults.class);
+        assertEquals(1, res.getDocs().size());
+        assertEquals(events[1].targettedResource.getId(),
+                     res.getDocs().get(0).getId());
+
+        // Terms only in the object itself are left out
+        Set<String> terms = new HashSet<String>();
+        for (WeightedKeyword kw : res.queryTerms)
+            terms.add(kw.term);
+        assertTrue(terms.contains("simapple"));
+        assertFalse(terms.contains("simtitle0"));
+
+        res = getData(apiUrl("/similar/event/" + events[0].getId()),
+                      SearchResults.class);
+        assertEquals(2, res.getDocs().size());
+        assertEquals(events[1].getId(), res.getDocs().get(0).getId());
+        assertEquals(events[2].getId(), res.getDocs().get(1).getId());
+
+        getDataExpectError(apiUrl("/similar/event/" + docId * 1000));
+        getDataExpectError(apiUrl("/similar/foo/" + docId));
+    }
+
+    @Test
+    public void testInterleavedIndexing() throws Exception {
+        searchIndex.updateIndex();
+
+        final TransactionTemplate tx =
+            new TransactionTemplate(transactionManager);
+        final CountDownLatch firstSaved = new CountDownLatch(1);
+        final CountDownLatch secondApplied = new CountDownLatch(1);
+
+        // The first transaction gets the lower outbox id, but
+        // commits only after the second one has been indexed.
+        Thread first = new Thread(new Runnable() {
+                public void run() {
+                    tx.execute(new TransactionCallbackWithoutResult() {
+                            protected void doInTransactionWithoutResult(TransactionStatus s) {
+                                ScientificDocument doc =
+                                    createScientificDocument("interleavedfirst");
+                                doc.user = getTestUser();
+                                infoElemDAO.save(doc);
+                                firstSaved.countDown();
+                                try {
+                                    secondApplied.await(30, TimeUnit.SECONDS);
+                                } catch (InterruptedException e) {
+                                    Thread.currentThread().interrupt();
+                                }
+                            }
+                        });
+                }
+            });
+        first.start();
+        assertTrue(firstSaved.await(30, TimeUnit.SECONDS));
+
+        tx.execute(new TransactionCallbackWithoutResult() {
+                protected void doInTransactionWithoutResult(TransactionStatus s) {
+                    ScientificDocument doc =
+                        createScientificDocument("interleavedsecond");
+                    doc.user = getTestUser();
+                    infoElemDAO.save(doc);
+                }
+            });
+        searchIndex.updateIndex();
+        searchIndex.commit();
+        assertEquals(1, doSearch("interleavedsecond").getDocs().size());
+
+        secondApplied.countDown();
+        first.join();
+
+        // The late entry is neither skipped nor purged
+        assertEquals(1, doSearch("interleavedfirst").getDocs().size());
+        assertEquals(1, doSearch("interleavedsecond").getDocs().size());
+    }
+
+    @Test
+    public void testDeletedSearch() throws Exception {
+        String magicText = "quuxdeleted";
+        ScientificDocument doc = createScientificDocument(magicText);
+        ScientificDocument uploadedDoc =
+            uploadElement(doc, ScientificDocument.class);
+
+        SearchResults searchRes = doSearch(magicText);
+        assertEquals(1, searchRes.getDocs().size());
+
+        deleteData(infoElemApi + "/" + uploadedDoc.getId());
+
+        // The deleted document should be gone from the index too
+        searchRes = doSearch(magicText);
+        assertEquals(0, searchRes.getDocs().size());
+        assertEquals(0, searchRes.getNumFound());
+
+        // Nothing left over for the orphan purge
+        assertEquals(0, searchIndex.purgeOrphans());
+    }
+
+    @Test
+    public void testBoundedKeywordSearch() throws Exception {
+        String magicText = "boundedmagic";
+        ScientificDocument doc = createScientificDocument(magicText);
+        uploadEvent(createReadingEvent(doc, "Some reading text."),
+                    ReadingEvent.class);
+
+        List<WeightedKeyword> keywords = new ArrayList<WeightedKeyword>();
+        for (int i=0; i<3000; i++)
+            keywords.add(new WeightedKeyword("filler" + i, 0.001f * (i % 100)));
+        keywords.add(new WeightedKeyword("BoundedMagic", 0.2f));
+        keywords.add(new WeightedKeyword(magicText, 0.5f));
+        keywords.add(new WeightedKeyword("the", 0.9f));
+        keywords.add(new WeightedKeyword("negative", -1.0f));
+
+        SearchResults res = uploadData(apiUrl("/keywordsearch?updateIndex=true"),
+                                       keywords, SearchResults.class);
+
+        assertEquals(1, res.getDocs().size());
+
+        // Normalized, merged and pruned to the top weights, stop
+        // words and non-positive weights left out
+        assertTrue(res.queryTerms.size() <= 200);
+        assertEquals(new WeightedKeyword(magicText, 0.5f),
+                     res.queryTerms.get(0));
+        for (int i=1; i<res.queryTerms.size(); i++) {
+            WeightedKeyword kw = res.queryTerms.get(i);
+            assertTrue(kw.term.startsWith("filler"));
+            assertTrue(kw.weight > 0);
+            assertTrue(kw.weight <= res.queryTerms.get(i-1).weight);
+        }
+    }
+
+    @Test
+    public void testLanguageSearch() throws Exception {
+        String finnish = "Kissat istuivat koko päivän ikkunalaudalla ja " +
+            "katselivat pihalla lentäviä lintuja. Illalla kissoille " +
+            "annettiin ruokaa, ja sen jälkeen ne nukkuivat sohvalla " +
+            "koko yön. Naapurin koirat haukkuivat kissoille aidan takaa.";
+        ScientificDocument doc = createScientificDocument(finnish);
+        doc.title = "Kissatarina";
+        ReadingEvent uploaded =
+            uploadEvent(createReadingEvent(doc, "Some reading text."),
+                        ReadingEvent.class);
+
+        // The base form only matches the inflected words in the
+        // Finnish field
+        SearchResults res = doSearch("koira");
+        assertEquals(1, res.getDocs().size());
+        InformationElement elem = (InformationElement)res.getDocs().get(0);
+        assertEquals(uploaded.targettedResource.getId(), elem.getId());
+        assertEquals("fi", elem.detectedLanguage);
+
+        // The original terms still match
+        res = doSearch("kissoille");
+        assertEquals(1, res.getDocs().size());
+    }
+
     @Test
     public void testKeywordSearch() throws Exception {
         String magicText = "foobarbaz";
@@ -308,6 +860,9 @@ public class ApiControllerTest extends RestTest {
         assertEquals(getDoc1.plainTextContent, doc.plainTextContent);
         assertTrue(getDoc1.weightedKeywords == null);
 
+        // Language is detected when indexing
+        assertTrue(getDoc1.detectedLanguage != null);
+
         ScientificDocument getDoc2 = getData(infoElemApi + "/" + resDoc.getId() +
                                              "?keywords=true",
                                             ScientificDocument.class);
@@ -321,6 +876,109 @@ public class ApiControllerTest extends RestTest {
         System.out.println(getDoc2.weightedKeywords.size());
     }
 
+    @Test
+    public void testStoredKeywords() throws Exception {
+        // Long document with more distinct terms than are stored per
+        // document, the rare term is not among the most frequent ones
+        int k = config.getLuceneKeywordsPerDoc();
+        StringBuilder text = new StringBuilder("storedshared storedshared " +
+                                               "storedrare");
+        for (int i=0; i<k+50; i++)
+            text.append(" storedfiller" + i + " storedfiller" + i);
+        ScientificDocument longDoc =
+            uploadElement(createScientificDocument(text.toString()),
+                          ScientificDocument.class);
+
+        // Short document whose terms are all stored
+        ScientificDocument shortDoc =
+            uploadElement(createScientificDocument("storedshared storedshared " +
+                                                   "storedshort"),
+                          ScientificDocument.class);
+
+        doSearch("storedshared");
+
+        List<WeightedKeyword> longKws =
+            getData(infoElemApi + "/" + longDoc.getId() + "?keywords=tfidf",
+                    ScientificDocument.class).weightedKeywords;
+        List<WeightedKeyword> shortKws =
+            getData(infoElemApi + "/" + shortDoc.getId() + "?keywords=tfidf",
+                    ScientificDocument.class).weightedKeywords;
+
+        // All terms of the long document are returned, read from the
+        // term vectors
+        assertTrue(longKws.size() > k);
+        assertNotNull(findKeyword(longKws, "storedrar"));
+        assertNotNull(findKeyword(shortKws, "storedshort"));
+
+        // Both paths weight the same term frequency equally
+        WeightedKeyword longShared = findKeyword(longKws, "storedshar");
+        WeightedKeyword shortShared = findKeyword(shortKws, "storedshar");
+        assertNotNull(longShared);
+        assertNotNull(shortShared);
+        assertEquals(longShared.weight, shortShared.weight, 1e-6);
+    }
+
+    private WeightedKeyword findKeyword(List<WeightedKeyword> kws,
+                                        String prefix) {
+        for (WeightedKeyword kw : kws)
+            if (kw.term.startsWith(prefix))
+                return kw;
+        return null;
+    }
+
+    /**
+       Compares fetching the objects of search hits with one query
+       per kind, as the search does, to fetching them one by one.
+       Only run with -Ddime.benchmarks=true.
+    */
+    @Test
+    public void benchmarkHitObjects() throws Exception {
+        Assume.assumeTrue(Boolean.getBoolean("dime.benchmarks"));
+
+        int[] hitCounts = { 10, 100, 1000 };
+        int rounds = 20;
+
+        List<Long> ids = new ArrayList<Long>();
+        for (int i=0; i<10; i++) {
+            ScientificDocument[] docs = new ScientificDocument[100];
+            for (int j=0; j<docs.length; j++)
+                docs[j] = createScientificDocument("Benchmark document " +
+                                                   (i*100 + j));
+            for (ScientificDocument doc :
+                     uploadElements(docs, ScientificDocument[].class))
+                ids.add(doc.getId());
+        }
+        User user = getTestUser();
+
+        // warm up both paths
+        infoElemDAO.findByIds(ids, user);
+        for (Long id : ids)
+            infoElemDAO.findById(id, user);
+
+        for (int numHits : hitCounts) {
+            List<Long> hits = ids.subList(0, numHits);
+
+            long start = System.nanoTime();
+            for (int r=0; r<rounds; r++)
+                assertEquals(numHits, infoElemDAO.findByIds(hits, user).size());
+            long bulkNanos = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (int r=0; r<rounds; r++) {
+                int found = 0;
+                for (Long id : hits)
+                    if (infoElemDAO.findById(id, user) != null)
+                        found++;
+                assertEquals(numHits, found);
+            }
+            long perHitNanos = System.nanoTime() - start;
+
+            LOG.info("{} hits: bulk {} ms, per hit {} ms", numHits,
+                     String.format("%.2f", bulkNanos / 1e6 / rounds),
+                     String.format("%.2f", perHitNanos / 1e6 / rounds));
+        }
+    }
+
     @Test
     public void testProfiles() throws Exception {
         // Create a document
@@ -130,6 +130,13 @@ public abstract class RestTest {
         userService.removeAllForUserId(testUser.getId());
     }
 
+    /**
+     * Returns the user the REST API calls are made as.
+     */
+    public User getTestUser() {
+        return testUser;
+    }
+
     /**
      * Returns RestTemplate object for performing REST API calls.
      */
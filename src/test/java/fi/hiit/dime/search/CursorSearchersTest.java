@@ -0,0 +1,137 @@
+/*
+  Copyright (c) 2015-2016 University of Helsinki
+
+  Permission is hereby granted, free of charge, to any person
+  obtaining a copy of this software and associated documentation files
+  (the "Software"), to deal in the Software without restriction,
+  including without limitation the rights to use, copy, modify, merge,
+  publish, distribute, sublicense, and/or sell copies of the Software,
+  and to permit persons to whom the Software is furnished to do so,
+  subject to the following conditions:
+
+  The above copyright notice and this permission notice shall be
+  included in all copies or substantial portions of the Software.
+
+  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+  EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+  MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+  NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+  BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+  ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+  CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+  SOFTWARE.
+*/
+
+package fi.hiit.dime.search;
+
+import static org.junit.Assert.*;
+
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.MultiReader;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.store.RAMDirectory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+
+public class CursorSearchersTest {
+    private RAMDirectory dir;
+    private IndexWriter writer;
+
+    @Before
+    public void setup() throws Exception {
+        dir = new RAMDirectory();
+        writer = new IndexWriter(dir, new IndexWriterConfig(new StandardAnalyzer()));
+        addDocument("1");
+    }
+
+    @After
+    public void shutdown() throws Exception {
+        writer.close();
+        dir.close();
+    }
+
+    private void addDocument(String id) throws IOException {
+        Document doc = new Document();
+        doc.add(new StringField("id", id, Field.Store.YES));
+        writer.addDocument(doc);
+        writer.commit();
+    }
+
+    private static IndexSearcher wrap(IndexReader reader) throws IOException {
+        return new IndexSearcher(new MultiReader(new IndexReader[] { reader },
+                                                 false));
+    }
+
+    @Test
+    public void testSameView() throws Exception {
+        CursorSearchers cursors = new CursorSearchers(60000, 4);
+        DirectoryReader reader = DirectoryReader.open(dir);
+
+        // new searchers over the same segments share one entry
+        IndexSearcher s1 = wrap(reader);
+        IndexSearcher s2 = wrap(reader);
+        long token = cursors.record(s1);
+        assertEquals(token, cursors.record(s2));
+        assertEquals(1, cursors.size());
+        s1.getIndexReader().close();
+        s2.getIndexReader().close();
+
+        IndexSearcher searcher = cursors.acquire(token);
+        assertEquals(1, searcher.getIndexReader().numDocs());
+        cursors.release(searcher);
+
+        // a changed index is a new view
+        addDocument("2");
+        DirectoryReader newReader = DirectoryReader.openIfChanged(reader);
+        IndexSearcher s3 = new IndexSearcher(newReader);
+        assertNotEquals(token, cursors.record(s3));
+        assertEquals(2, cursors.size());
+
+        cursors.close();
+        assertEquals(1, reader.getRefCount());
+        assertEquals(1, newReader.getRefCount());
+        reader.close();
+        newReader.close();
+    }
+
+    @Test
+    public void testMaxSearchers() throws Exception {
+        CursorSearchers cursors = new CursorSearchers(60000, 2);
+
+        DirectoryReader r1 = DirectoryReader.open(dir);
+        long t1 = cursors.record(new IndexSearcher(r1));
+        addDocument("2");
+        DirectoryReader r2 = DirectoryReader.openIfChanged(r1);
+        long t2 = cursors.record(new IndexSearcher(r2));
+
+        // the first searcher is used again, so the second is the
+        // least recently used one when a third is kept
+        Thread.sleep(5);
+        cursors.release(cursors.acquire(t1));
+        addDocument("3");
+        DirectoryReader r3 = DirectoryReader.openIfChanged(r2);
+        long t3 = cursors.record(new IndexSearcher(r3));
+
+        assertEquals(2, cursors.size());
+        assertNull(cursors.acquire(t2));
+        assertFalse(cursors.isLive(t2));
+        assertEquals(1, r2.getRefCount());
+        assertTrue(cursors.isLive(t1));
+        assertTrue(cursors.isLive(t3));
+
+        cursors.close();
+        r1.close();
+        r2.close();
+        r3.close();
+    }
+}
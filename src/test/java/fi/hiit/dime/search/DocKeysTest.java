@@ -0,0 +1,182 @@
+/*
+  Copyright (c) 2015-2016 University of Helsinki
+
+  Permission is hereby granted, free of charge, to any person
+  obtaining a copy of this software and associated documentation files
+  (the "Software"), to deal in the Software without restriction,
+  including without limitation the rights to use, copy, modify, merge,
+  publish, distribute, sublicense, and/or sell copies of the Software,
+  and to permit persons to whom the Software is furnished to do so,
+  subject to the following conditions:
+
+  The above copyright notice and this permission notice shall be
+  included in all copies or substantial portions of the Software.
+
+  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+  EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+  MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+  NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+  BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+  ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+  CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+  SOFTWARE.
+*/
+
+package fi.hiit.dime.search;
+
+import static org.junit.Assert.*;
+
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.NumericDocValuesField;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.store.RAMDirectory;
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collections;
+import java.util.Random;
+import java.util.Set;
+
+/**
+   Checks the numeric key lookup against the string id lookup it
+   replaces, and compares their speed when benchmarks are enabled
+   with -Ddime.benchmarks=true.
+*/
+public class DocKeysTest {
+    private static final Logger LOG = LoggerFactory.getLogger(DocKeysTest.class);
+
+    private static final int numDocs = 20000;
+    private static final int numLookups = 50000;
+
+    private RAMDirectory dir;
+    private DirectoryReader reader;
+
+    private static String stringId(byte kind, long id) {
+        return (kind == DocKeys.EVENT ? "event_" : "elem_") + id;
+    }
+
+    @Before
+    public void setup() throws Exception {
+        dir = new RAMDirectory();
+        IndexWriterConfig iwc = new IndexWriterConfig(new StandardAnalyzer());
+        iwc.setMaxBufferedDocs(numDocs / 7); // several segments
+        try (IndexWriter writer = new IndexWriter(dir, iwc)) {
+            for (int i=1; i<=numDocs; i++) {
+                byte kind = i % 3 == 0 ? DocKeys.EVENT : DocKeys.ELEM;
+                Document doc = new Document();
+                doc.add(new StringField("id", stringId(kind, i),
+                                        Field.Store.YES));
+                doc.add(new NumericDocValuesField(DocKeys.keyField,
+                                                  DocKeys.key(kind, i)));
+                writer.addDocument(doc);
+            }
+
+            // an updated document leaves a deleted copy behind
+            Document doc = new Document();
+            doc.add(new StringField("id", stringId(DocKeys.ELEM, 1),
+                                    Field.Store.YES));
+            doc.add(new NumericDocValuesField(DocKeys.keyField,
+                                              DocKeys.key(DocKeys.ELEM, 1)));
+            writer.updateDocument(new Term("id", stringId(DocKeys.ELEM, 1)),
+                                  doc);
+        }
+        reader = DirectoryReader.open(dir);
+    }
+
+    @After
+    public void shutdown() throws Exception {
+        reader.close();
+        dir.close();
+    }
+
+    @Test
+    public void testKeys() {
+        long key = DocKeys.key(DocKeys.EVENT, 1234567890123L);
+        assertEquals(DocKeys.EVENT, DocKeys.kindOf(key));
+        assertEquals(1234567890123L, DocKeys.idOf(key));
+        assertEquals(key, DocKeys.key("event", 1234567890123L));
+        assertEquals(DocKeys.ELEM, DocKeys.kindOf(DocKeys.key("elem", 5)));
+    }
+
+    @Test
+    public void testLookup() throws Exception {
+        DocKeys docKeys = new DocKeys();
+        IndexSearcher searcher = new IndexSearcher(reader);
+
+        for (int i=1; i<=numDocs; i++) {
+            byte kind = i % 3 == 0 ? DocKeys.EVENT : DocKeys.ELEM;
+            int doc = docKeys.docId(reader, DocKeys.key(kind, i));
+            assertTrue(doc >= 0);
+            assertEquals(stringId(kind, i), reader.document(doc).get("id"));
+
+            long[] keys = DocKeys.keys(reader, new int[] { doc });
+            assertEquals(DocKeys.key(kind, i), keys[0]);
+        }
+
+        // missing, wrong kind, and deleted
+        assertEquals(-1, docKeys.docId(reader, DocKeys.key(DocKeys.ELEM,
+                                                           numDocs + 1)));
+        assertEquals(-1, docKeys.docId(reader, DocKeys.key(DocKeys.EVENT, 1)));
+        TopDocs hits = searcher.search(new TermQuery(new Term("id", "elem_1")), 2);
+        assertEquals(1, hits.totalHits);
+        assertEquals(hits.scoreDocs[0].doc,
+                     docKeys.docId(reader, DocKeys.key(DocKeys.ELEM, 1)));
+    }
+
+    @Test
+    public void benchmarkLookup() throws Exception {
+        Assume.assumeTrue(Boolean.getBoolean("dime.benchmarks"));
+
+        DocKeys docKeys = new DocKeys();
+        IndexSearcher searcher = new IndexSearcher(reader);
+        Set<String> idFields = Collections.singleton("id");
+        Random random = new Random(42);
+        long[] ids = new long[numLookups];
+        for (int i=0; i<numLookups; i++)
+            ids[i] = 1 + random.nextInt(numDocs);
+
+        // warm up both paths
+        docKeys.docId(reader, DocKeys.key(DocKeys.ELEM, 1));
+        searcher.search(new TermQuery(new Term("id", "elem_1")), 1);
+
+        // old path: string id, term query, stored field to map back
+        long start = System.nanoTime();
+        long sum = 0;
+        for (long id : ids) {
+            byte kind = id % 3 == 0 ? DocKeys.EVENT : DocKeys.ELEM;
+            TopDocs hits = searcher.search(new TermQuery(new Term("id", stringId(kind, id))), 1);
+            String docId = searcher.doc(hits.scoreDocs[0].doc, idFields).get("id");
+            sum += Long.parseLong(docId.split("_", 2)[1]);
+        }
+        long stringNanos = System.nanoTime() - start;
+
+        // new path: key lookup, doc values to map back
+        start = System.nanoTime();
+        long keySum = 0;
+        int[] doc = new int[1];
+        for (long id : ids) {
+            byte kind = id % 3 == 0 ? DocKeys.EVENT : DocKeys.ELEM;
+            doc[0] = docKeys.docId(reader, DocKeys.key(kind, id));
+            keySum += DocKeys.idOf(DocKeys.keys(reader, doc)[0]);
+        }
+        long keyNanos = System.nanoTime() - start;
+
+        assertEquals(sum, keySum);
+        LOG.info("String id lookup: {} us/op, key lookup: {} us/op",
+                 String.format("%.2f", stringNanos / 1000.0 / numLookups),
+                 String.format("%.2f", keyNanos / 1000.0 / numLookups));
+    }
+}
@@ -0,0 +1,160 @@
+/*
+  Copyright (c) 2015-2016 University of Helsinki
+
+  Permission is hereby granted, free of charge, to any person
+  obtaining a copy of this software and associated documentation files
+  (the "Software"), to deal in the Software without restriction,
+  including without limitation the rights to use, copy, modify, merge,
+  publish, distribute, sublicense, and/or sell copies of the Software,
+  and to permit persons to whom the Software is furnished to do so,
+  subject to the following conditions:
+
+  The above copyright notice and this permission notice shall be
+  included in all copies or substantial portions of the Software.
+
+  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+  EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+  MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+  NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+  BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+  ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+  CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+  SOFTWARE.
+*/
+
+package fi.hiit.dime.search;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class ResultCacheTest {
+    private static class CountingLoader implements Callable<String> {
+        final AtomicInteger calls = new AtomicInteger();
+        final String value;
+
+        CountingLoader(String value) { this.value = value; }
+
+        public String call() {
+            calls.incrementAndGet();
+            return value;
+        }
+    }
+
+    @Test
+    public void testGeneration() throws Exception {
+        ResultCache<String> cache = new ResultCache<String>(10);
+        CountingLoader loader = new CountingLoader("a");
+
+        assertEquals("a", cache.get("q", 1, true, loader));
+        assertEquals("a", cache.get("q", 1, true, loader));
+        assertEquals(1, loader.calls.get());
+
+        // a new generation invalidates the entry
+        assertEquals("a", cache.get("q", 2, true, loader));
+        assertEquals(2, loader.calls.get());
+
+        // values that may be stale are not stored
+        assertEquals("a", cache.get("r", 2, false, loader));
+        assertEquals("a", cache.get("r", 2, false, loader));
+        assertEquals(4, loader.calls.get());
+
+        ResultCache.Stats stats = cache.getStats();
+        assertEquals(1, stats.hits);
+        assertEquals(4, stats.misses);
+        assertEquals(1, stats.invalidations);
+        assertEquals(1, stats.size);
+    }
+
+    @Test
+    public void testEviction() throws Exception {
+        ResultCache<String> cache = new ResultCache<String>(2);
+        CountingLoader loader = new CountingLoader("a");
+
+        cache.get("q1", 1, true, loader);
+        cache.get("q2", 1, true, loader);
+        cache.get("q1", 1, true, loader);
+        cache.get("q3", 1, true, loader);  // evicts q2
+
+        assertEquals(3, loader.calls.get());
+        cache.get("q1", 1, true, loader);
+        assertEquals(3, loader.calls.get());
+        cache.get("q2", 1, true, loader);
+        assertEquals(4, loader.calls.get());
+
+        ResultCache.Stats stats = cache.getStats();
+        assertEquals(2, stats.evictions);
+        assertEquals(2, stats.size);
+    }
+
+    @Test
+    public void testException() throws Exception {
+        ResultCache<String> cache = new ResultCache<String>(10);
+        try {
+            cache.get("q", 1, true, new Callable<String>() {
+                    public String call() throws IOException {
+                        throw new IOException("failed");
+                    }
+                });
+            fail("Exception expected");
+        } catch (IOException e) {
+            assertEquals("failed", e.getMessage());
+        }
+        assertEquals(0, cache.getStats().size);
+    }
+
+    @Test
+    public void testCoalescing() throws Exception {
+        final ResultCache<String> cache = new ResultCache<String>(10);
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger calls = new AtomicInteger();
+        final Callable<String> loader = new Callable<String>() {
+            public String call() throws InterruptedException {
+                calls.incrementAndGet();
+                started.countDown();
+                release.await();
+                return "a";
+            }
+        };
+        Callable<String> request = new Callable<String>() {
+            public String call() throws Exception {
+                return cache.get("q", 1, false, loader);
+            }
+        };
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            Future<String> first = executor.submit(request);
+            started.await();
+            Future<String> second = executor.submit(request);
+            Future<String> third = executor.submit(request);
+
+            // wait for the others to find the running search
+            long deadline = System.currentTimeMillis() + 5000;
+            while (cache.getStats().coalesced < 2 &&
+                   System.currentTimeMillis() < deadline)
+                Thread.sleep(10);
+            release.countDown();
+
+            assertEquals("a", first.get());
+            assertEquals("a", second.get());
+            assertEquals("a", third.get());
+        } finally {
+            executor.shutdown();
+            executor.awaitTermination(5, TimeUnit.SECONDS);
+        }
+
+        assertEquals(1, calls.get());
+        assertEquals(2, cache.getStats().coalesced);
+    }
+}
@@ -0,0 +1,122 @@
+/*
+  Copyright (c) 2015-2016 University of Helsinki
+
+  Permission is hereby granted, free of charge, to any person
+  obtaining a copy of this software and associated documentation files
+  (the "Software"), to deal in the Software without restriction,
+  including without limitation the rights to use, copy, modify, merge,
+  publish, distribute, sublicense, and/or sell copies of the Software,
+  and to permit persons to whom the Software is furnished to do so,
+  subject to the following conditions:
+
+  The above copyright notice and this permission notice shall be
+  included in all copies or substantial portions of the Software.
+
+  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+  EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+  MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+  NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+  BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN
+  ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+  CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+  SOFTWARE.
+*/
+
+package fi.hiit.dime.search;
+
+import static org.junit.Assert.*;
+
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.FieldType;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexOptions;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.store.RAMDirectory;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+   Checks the snippets built from term vector offsets.
+*/
+public class SnippetsTest {
+    private static final String text =
+        "The quick brown fox jumps over the lazy dog. " +
+        "Lorem ipsum dolor sit amet, consectetur adipiscing elit, sed do " +
+        "eiusmod tempor incididunt ut labore et dolore magna aliqua. " +
+        "Ut enim ad minim veniam, quis nostrud exercitation ullamco " +
+        "laboris nisi ut aliquip ex ea commodo consequat. A fox & a dog " +
+        "again, and the fox once more.";
+
+    private int[] offsets(String... terms) throws Exception {
+        FieldType fieldType = new FieldType();
+        fieldType.setIndexOptions(IndexOptions.DOCS_AND_FREQS_AND_POSITIONS);
+        fieldType.setTokenized(true);
+        fieldType.setStoreTermVectors(true);
+        fieldType.setStoreTermVectorPositions(true);
+        fieldType.setStoreTermVectorOffsets(true);
+
+        RAMDirectory dir = new RAMDirectory();
+        IndexWriterConfig iwc = new IndexWriterConfig(new StandardAnalyzer());
+        try (IndexWriter writer = new IndexWriter(dir, iwc)) {
+            Document doc = new Document();
+            doc.add(new Field("text", text, fieldType));
+            writer.addDocument(doc);
+        }
+        try (DirectoryReader reader = DirectoryReader.open(dir)) {
+            return Snippets.offsets(reader, 0, "text", Arrays.asList(terms));
+        }
+    }
+
+    @Test
+    public void testOffsets() throws Exception {
+        int[] offsets = offsets("fox", "dog", "missing");
+        assertEquals(10, offsets.length);
+        for (int i=0; i<offsets.length; i+=2) {
+            String match = text.substring(offsets[i], offsets[i+1]);
+            assertTrue(match, match.equals("fox") || match.equals("dog"));
+            if (i > 0)
+                assertTrue(offsets[i] > offsets[i-2]);
+        }
+    }
+
+    @Test
+    public void testFragments() throws Exception {
+        int[] offsets = offsets("fox", "dog");
+        List<String> fragments = Snippets.fragments(text, offsets, 2, 60);
+        assertEquals(2, fragments.size());
+
+        // the end of the text has the most matches
+        String best = fragments.get(0);
+        assertTrue(best, best.contains("<em>fox</em> &amp; a <em>dog</em>"));
+        assertTrue(best, best.length() < 60 + 4*9 + 10);
+        assertTrue(fragments.get(1),
+                   fragments.get(1).contains("quick brown <em>fox</em>"));
+
+        // fragments don't overlap
+        fragments = Snippets.fragments(text, offsets, 10, 60);
+        assertEquals(2, fragments.size());
+
+        fragments = Snippets.fragments(text, offsets, 1, 60);
+        assertEquals(best, fragments.get(0));
+    }
+
+    @Test
+    public void testNoMatches() throws Exception {
+        List<String> fragments = Snippets.fragments(text, new int[0], 2, 40);
+        assertEquals(1, fragments.size());
+        assertTrue(text.startsWith(fragments.get(0)));
+        assertTrue(fragments.get(0).length() <= 40);
+
+        // offsets past the end of a changed text are ignored
+        fragments = Snippets.fragments("short fox", offsets("fox"), 2, 40);
+        assertEquals(1, fragments.size());
+        assertEquals("short fox", fragments.get(0));
+
+        assertTrue(Snippets.fragments(null, new int[0], 2, 40).isEmpty());
+    }
+}